@@ -34,6 +34,7 @@ import com.google.gwt.user.client.ui.RootPanel;
 import com.sencha.gxt.data.shared.event.StoreAddEvent;
 import com.sencha.gxt.data.shared.event.StoreHandlers;
 import com.sencha.gxt.data.shared.event.StoreRemoveEvent;
+import com.sencha.gxt.data.shared.event.StoreUpdateEvent;
 
 public class Application {
 
@@ -74,7 +75,7 @@ public class Application {
                 geoFenceController.getDeviceGeoFences(),
                 this);
         archiveController = new ArchiveController(archiveHandler, userSettingsHandler, deviceController.getDeviceStore());
-        archiveController.getPositionStore().addStoreHandlers(archiveStoreHandler);
+        archiveController.getTrackStore().addStoreHandlers(archiveStoreHandler);
 
         view = new ApplicationView(
                 deviceController.getView(), mapController.getView(), archiveController.getView());
@@ -129,6 +130,12 @@ public class Application {
             geoFenceController.deviceRemoved(event.getItem());
         }
 
+        @Override
+        public void onUpdate(StoreUpdateEvent<Device> event) {
+            // device name or icon may change without new positions
+            mapController.reload();
+        }
+
     };
 
     private StoreHandlers<Position> archiveStoreHandler = new BaseStoreHandlers<Position>() {
@@ -137,7 +144,7 @@ public class Application {
         public void onAnything() {
             mapController.showArchivePositions(
                     new Track(
-                            archiveController.getPositionStore().getAll(),
+                            archiveController.getTrackStore().getAll(),
                             archiveController.getStyle()
                     )
             );
@@ -28,6 +28,8 @@ import org.traccar.web.client.view.ArchiveView;
 import org.traccar.web.client.view.FilterDialog;
 import org.traccar.web.shared.model.Device;
 import org.traccar.web.shared.model.Position;
+import org.traccar.web.shared.model.PositionArchive;
+import org.traccar.web.shared.model.PositionRollup;
 
 import com.google.gwt.core.client.GWT;
 import com.sencha.gxt.data.shared.ListStore;
@@ -36,6 +38,16 @@ import com.sencha.gxt.widget.core.client.box.AlertMessageBox;
 
 public class ArchiveController implements ContentController, ArchiveView.ArchiveHandler {
 
+    /**
+     * Number of positions loaded into grid at once
+     */
+    private static final int PAGE_SIZE = 500;
+
+    /**
+     * Maximal deviation in meters of the track on map from positions in grid
+     */
+    private static final double TRACK_TOLERANCE = 5;
+
     public interface ArchiveHandler {
         public void onSelected(Position position);
     }
@@ -46,8 +58,23 @@ public class ArchiveController implements ContentController, ArchiveView.Archive
 
     private ListStore<Position> positionStore;
 
+    private ListStore<Position> trackStore;
+
     private ArchiveView archiveView;
 
+    private Device device;
+    private Date from;
+    private Date to;
+    private boolean filter;
+    private ArchiveStyle style;
+    private Position lastPosition;
+    private boolean loading;
+    private boolean loadedAll = true;
+    /**
+     * Incremented on each new search, so pages of previous search are ignored
+     */
+    private int searchId;
+
     private Messages i18n = GWT.create(Messages.class);
 
     public ArchiveController(ArchiveHandler archiveHandler, FilterDialog.FilterSettingsHandler filterSettingsHandler, ListStore<Device> deviceStore) {
@@ -55,6 +82,7 @@ public class ArchiveController implements ContentController, ArchiveView.Archive
         this.filterSettingsHandler = filterSettingsHandler;
         PositionProperties positionProperties = GWT.create(PositionProperties.class);
         positionStore = new ListStore<Position>(positionProperties.id());
+        trackStore = new ListStore<Position>(positionProperties.id());
         archiveView = new ArchiveView(this, positionStore, deviceStore);
     }
 
@@ -62,6 +90,13 @@ public class ArchiveController implements ContentController, ArchiveView.Archive
         return positionStore;
     }
 
+    /**
+     * @return simplified track of the whole period shown on map
+     */
+    public ListStore<Position> getTrackStore() {
+        return trackStore;
+    }
+
     @Override
     public ContentPanel getView() {
         return archiveView.getView();
@@ -79,23 +114,48 @@ public class ArchiveController implements ContentController, ArchiveView.Archive
     @Override
     public void onLoad(final Device device, Date from, Date to, boolean filter, final ArchiveStyle style) {
         if (device != null && from != null && to != null) {
-            Application.getDataService().getPositions(device, from, to, filter, new BaseAsyncCallback<List<Position>>(i18n) {
+            this.device = device;
+            this.from = from;
+            this.to = to;
+            this.filter = filter;
+            this.style = style;
+            final int searchId = ++this.searchId;
+            positionStore.clear();
+            lastPosition = null;
+            loading = false;
+            loadedAll = false;
+
+            Application.getDataService().getPositionArchive(device, from, to, filter, TRACK_TOLERANCE, true, new BaseAsyncCallback<PositionArchive>(i18n) {
                 @Override
-                public void onSuccess(List<Position> result) {
-                    positionStore.clear();
+                public void onSuccess(PositionArchive archive) {
+                    if (searchId != ArchiveController.this.searchId) {
+                        return;
+                    }
+                    List<Position> result = archive.decode();
+                    trackStore.clear();
                     if (result.isEmpty()) {
                         new AlertMessageBox(i18n.error(), i18n.errNoResults()).show();
                     } else {
-                        for (Position position : result) {
-                            position.setStatus(Position.Status.ARCHIVE);
-                            if (style.getIconType() != null) { // If style is set, override device's icon
-                                position.setIconType(style.getIconType());
-                            } else {
-                                position.setIconType(device.getIconType().getPositionIconType(position.getStatus()));
-                            }
-                        }
-                        positionStore.addAll(result);
+                        setIcons(result);
+                        trackStore.addAll(result);
+                    }
+                }
+            });
+            onLoadMore();
+
+            // total distance of the whole period is read from rollups instead of summing loaded pages
+            archiveView.setTotalDistance(null);
+            Application.getDataService().getRollups(device, from, to, new BaseAsyncCallback<List<PositionRollup>>(i18n) {
+                @Override
+                public void onSuccess(List<PositionRollup> result) {
+                    if (searchId != ArchiveController.this.searchId) {
+                        return;
                     }
+                    double distance = 0;
+                    for (PositionRollup rollup : result) {
+                        distance += rollup.getDistance();
+                    }
+                    archiveView.setTotalDistance(distance);
                 }
             });
         } else {
@@ -103,9 +163,58 @@ public class ArchiveController implements ContentController, ArchiveView.Archive
         }
     }
 
+    @Override
+    public void onLoadMore() {
+        if (loading || loadedAll) {
+            return;
+        }
+        loading = true;
+        final int searchId = this.searchId;
+        Date afterTime = lastPosition == null ? null : lastPosition.getTime();
+        long afterId = lastPosition == null ? 0 : lastPosition.getId();
+        Application.getDataService().getPositions(device, from, to, filter, afterTime, afterId, PAGE_SIZE, new BaseAsyncCallback<List<Position>>(i18n) {
+            @Override
+            public void onSuccess(List<Position> result) {
+                if (searchId != ArchiveController.this.searchId) {
+                    return;
+                }
+                loading = false;
+                loadedAll = result.size() < PAGE_SIZE;
+                if (!result.isEmpty()) {
+                    lastPosition = result.get(result.size() - 1);
+                    setIcons(result);
+                    positionStore.addAll(result);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable caught) {
+                if (searchId == ArchiveController.this.searchId) {
+                    loading = false;
+                }
+                super.onFailure(caught);
+            }
+        });
+    }
+
+    private void setIcons(List<Position> positions) {
+        for (Position position : positions) {
+            position.setStatus(Position.Status.ARCHIVE);
+            if (style.getIconType() != null) { // If style is set, override device's icon
+                position.setIconType(style.getIconType());
+            } else {
+                position.setIconType(device.getIconType().getPositionIconType(position.getStatus()));
+            }
+        }
+    }
+
     @Override
     public void onClear() {
+        searchId++;
+        loadedAll = true;
         positionStore.clear();
+        trackStore.clear();
+        archiveView.setTotalDistance(null);
     }
 
     @Override
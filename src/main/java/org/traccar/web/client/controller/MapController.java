@@ -30,13 +30,17 @@ import org.traccar.web.client.i18n.Messages;
 import org.traccar.web.client.view.MapView;
 import org.traccar.web.shared.model.Device;
 import org.traccar.web.shared.model.GeoFence;
+import org.traccar.web.shared.model.LatestPositions;
 import org.traccar.web.shared.model.Position;
 import org.traccar.web.shared.model.UserSettings;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class MapController implements ContentController, MapView.MapHandler {
     private final static Messages i18n = GWT.create(Messages.class);
@@ -73,6 +77,7 @@ public class MapController implements ContentController, MapView.MapHandler {
 
     @Override
     public void run() {
+        latestPositionsVersion = 0;
         latestNonIdlePositionMap.clear();
         updateTimer = new Timer() {
             @Override
@@ -102,19 +107,60 @@ public class MapController implements ContentController, MapView.MapHandler {
 
     private Map<Long, Position> timestampMap = new HashMap<Long, Position>();
 
+    /**
+     * Identifier of the newest latest position received from server, <code>0</code> forces full reload
+     */
+    private long latestPositionsVersion;
+
+    public void reload() {
+        latestPositionsVersion = 0;
+        update();
+    }
+
     public void update() {
         updateTimer.cancel();
-        Application.getDataService().getLatestPositions(new AsyncCallback<List<Position>>() {
+        Application.getDataService().getLatestPositionsSince(latestPositionsVersion, new AsyncCallback<LatestPositions>() {
             @Override
-            public void onSuccess(List<Position> result) {
+            public void onSuccess(LatestPositions result) {
+                List<Position> positions = result.getPositions();
+                Set<Long> changedDeviceIds = new HashSet<Long>();
+                for (Position position : positions) {
+                    changedDeviceIds.add(position.getDevice().getId());
+                }
+                /**
+                 * Forget devices, which are not available anymore
+                 */
+                Set<Long> removedDeviceIds = new HashSet<Long>(result.getRemovedDeviceIds());
+                if (result.isFull()) {
+                    for (Long deviceId : latestPositionMap.keySet()) {
+                        if (!changedDeviceIds.contains(deviceId)) {
+                            removedDeviceIds.add(deviceId);
+                        }
+                    }
+                }
+                for (Long deviceId : removedDeviceIds) {
+                    latestPositionMap.remove(deviceId);
+                    latestNonIdlePositionMap.remove(deviceId);
+                    timestampMap.remove(deviceId);
+                }
                 /**
                  * Set up icon and 'idle since'
                  */
                 long currentTime = System.currentTimeMillis();
-                for (Position position : result) {
+                List<Position> redraw = new ArrayList<Position>(positions);
+                for (Position position : latestPositionMap.values()) {
+                    if (!changedDeviceIds.contains(position.getDevice().getId())) {
+                        Position.Status status = getStatus(position, currentTime);
+                        if (status != position.getStatus()) {
+                            position.setStatus(status);
+                            position.setIconType(position.getDevice().getIconType().getPositionIconType(status));
+                            redraw.add(position);
+                        }
+                    }
+                }
+                for (Position position : positions) {
                     Device device = position.getDevice();
-                    boolean isOffline = currentTime - position.getTime().getTime() > position.getDevice().getTimeout() * 1000;
-                    position.setStatus(isOffline ? Position.Status.OFFLINE : Position.Status.LATEST);
+                    position.setStatus(getStatus(position, currentTime));
                     position.setIconType(device.getIconType().getPositionIconType(position.getStatus()));
                     if (position.getSpeed() != null) {
                         if (position.getSpeed().doubleValue() > position.getDevice().getIdleSpeedThreshold()) {
@@ -128,14 +174,13 @@ public class MapController implements ContentController, MapView.MapHandler {
                     }
                 }
                 /**
-                 * Draw positions
+                 * Draw changed positions
                  */
-                mapView.showLatestPositions(result);
-                mapView.showDeviceName(result);
+                mapView.updateLatestPositions(redraw, removedDeviceIds);
                 /**
                  * Follow positions and draw track if necessary
                  */
-                for (Position position : result) {
+                for (Position position : positions) {
                     Device device = position.getDevice();
                     Position prevPosition = latestPositionMap.get(device.getId());
                     if (prevPosition != null && prevPosition.getId() != position.getId()) {
@@ -158,6 +203,7 @@ public class MapController implements ContentController, MapView.MapHandler {
                     }
                     latestPositionMap.put(device.getId(), position);
                 }
+                latestPositionsVersion = result.getVersion();
                 updateTimer.schedule(ApplicationContext.getInstance().getApplicationSettings().getUpdateInterval());
             }
 
@@ -168,6 +214,11 @@ public class MapController implements ContentController, MapView.MapHandler {
         });
     }
 
+    private static Position.Status getStatus(Position position, long currentTime) {
+        boolean isOffline = currentTime - position.getTime().getTime() > position.getDevice().getTimeout() * 1000;
+        return isOffline ? Position.Status.OFFLINE : Position.Status.LATEST;
+    }
+
     public void drawGeoFence(GeoFence geoFence, boolean drawTitle) {
         mapView.drawGeoFence(geoFence, drawTitle);
     }
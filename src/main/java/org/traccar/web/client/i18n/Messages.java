@@ -39,6 +39,8 @@ public interface Messages extends com.google.gwt.i18n.client.Messages {
 
     String updateInterval();
 
+    String retentionDays();
+
     String device();
 
     String archive();
@@ -175,6 +177,8 @@ public interface Messages extends com.google.gwt.i18n.client.Messages {
 
     String idleWhenSpeedIsLE();
 
+    String deviceRetentionDays();
+
     String distance();
 
     String exportToCSV();
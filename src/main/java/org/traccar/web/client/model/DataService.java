@@ -60,8 +60,35 @@ public interface DataService extends RemoteService {
 
     List<Position> getPositions(Device device, Date from, Date to, boolean filter);
 
+    /**
+     * @param tolerance maximal deviation in meters of the simplified track from the original one,
+     *                  positions with events and positions where device starts or ends moving are always kept
+     */
+    List<Position> getPositions(Device device, Date from, Date to, boolean filter, double tolerance);
+
+    /**
+     * Loads one page of positions ordered by time and identifier
+     *
+     * @param afterTime time of the last position of previous page, <code>null</code> to load the first page
+     * @param afterId identifier of the last position of previous page
+     * @param limit maximal number of positions in page, less positions are returned only for the last page
+     */
+    List<Position> getPositions(Device device, Date from, Date to, boolean filter, Date afterTime, long afterId, int limit);
+
+    /**
+     * @param tolerance see {@link #getPositions(Device, Date, Date, boolean, double)}, zero to load all positions
+     * @param attributes whether valid flag, power, address and other attributes must be included
+     */
+    PositionArchive getPositionArchive(Device device, Date from, Date to, boolean filter, double tolerance, boolean attributes);
+
+    TripSummary getTripSummary(Device device, Date from, Date to, boolean filter);
+
+    List<PositionRollup> getRollups(Device device, Date from, Date to);
+
     List<Position> getLatestPositions();
 
+    LatestPositions getLatestPositionsSince(long version);
+
     List<Position> getLatestNonIdlePositions();
 
     ApplicationSettings getApplicationSettings();
@@ -53,8 +53,20 @@ public interface DataServiceAsync {
 
     void getLatestPositions(AsyncCallback<List<Position>> callback);
 
+    void getLatestPositionsSince(long version, AsyncCallback<LatestPositions> callback);
+
     void getPositions(Device device, Date from, Date to, boolean filter, AsyncCallback<List<Position>> callback);
 
+    void getPositions(Device device, Date from, Date to, boolean filter, double tolerance, AsyncCallback<List<Position>> callback);
+
+    void getPositions(Device device, Date from, Date to, boolean filter, Date afterTime, long afterId, int limit, AsyncCallback<List<Position>> callback);
+
+    void getPositionArchive(Device device, Date from, Date to, boolean filter, double tolerance, boolean attributes, AsyncCallback<PositionArchive> callback);
+
+    void getTripSummary(Device device, Date from, Date to, boolean filter, AsyncCallback<TripSummary> callback);
+
+    void getRollups(Device device, Date from, Date to, AsyncCallback<List<PositionRollup>> callback);
+
     void updateApplicationSettings(ApplicationSettings applicationSettings, AsyncCallback<Void> callback);
 
     void getApplicationSettings(AsyncCallback<ApplicationSettings> async);
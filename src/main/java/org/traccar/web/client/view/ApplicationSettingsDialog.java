@@ -79,6 +79,12 @@ public class ApplicationSettingsDialog implements Editor<ApplicationSettings> {
     @UiField
     NumberField<Short> updateInterval;
 
+    @UiField(provided = true)
+    NumberPropertyEditor<Integer> integerPropertyEditor = new NumberPropertyEditor.IntegerPropertyEditor();
+
+    @UiField
+    NumberField<Integer> retentionDays;
+
     @UiField(provided = true)
     ComboBox<PasswordHashMethod> defaultHashImplementation;
 
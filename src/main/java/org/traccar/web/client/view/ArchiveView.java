@@ -23,6 +23,8 @@ import com.google.gwt.event.logical.shared.SelectionHandler;
 import com.google.gwt.event.logical.shared.ValueChangeEvent;
 import com.google.gwt.event.logical.shared.ValueChangeHandler;
 import com.google.gwt.i18n.client.DateTimeFormat;
+import com.google.gwt.safehtml.shared.SafeHtml;
+import com.google.gwt.safehtml.shared.SafeHtmlUtils;
 import com.google.gwt.user.client.Window;
 import com.sencha.gxt.widget.core.client.box.AlertMessageBox;
 import com.sencha.gxt.widget.core.client.button.TextButton;
@@ -49,7 +51,9 @@ import com.sencha.gxt.cell.core.client.NumberCell;
 import com.sencha.gxt.core.client.Style.SelectionMode;
 import com.sencha.gxt.data.shared.ListStore;
 import com.sencha.gxt.data.shared.event.StoreHandlers;
+import com.sencha.gxt.core.client.dom.XElement;
 import com.sencha.gxt.widget.core.client.ContentPanel;
+import com.sencha.gxt.widget.core.client.event.BodyScrollEvent;
 import com.sencha.gxt.widget.core.client.event.SelectEvent;
 import com.sencha.gxt.widget.core.client.selection.SelectionChangedEvent;
 import org.traccar.web.shared.model.PositionIconType;
@@ -66,6 +70,7 @@ public class ArchiveView implements SelectionChangedEvent.SelectionChangedHandle
     public interface ArchiveHandler {
         public void onSelected(Position position);
         public void onLoad(Device device, Date from, Date to, boolean filter, ArchiveStyle style);
+        public void onLoadMore();
         public void onFilterSettings();
         public void onClear();
     }
@@ -105,6 +110,11 @@ public class ArchiveView implements SelectionChangedEvent.SelectionChangedHandle
     @UiField
     Grid<Position> grid;
 
+    /**
+     * Distance travelled within the whole period, not only on loaded pages, <code>null</code> until it is loaded
+     */
+    private Double totalDistance;
+
     @UiField
     CheckBox disableFilter;
 
@@ -169,7 +179,13 @@ public class ArchiveView implements SelectionChangedEvent.SelectionChangedHandle
         // set up 'Totals' row
         AggregationRowConfig<Position> totals = new AggregationRowConfig<Position>();
         totals.setRenderer(columnConfigSpeed, new AggregationNumberSummaryRenderer<Position, Double>(ApplicationContext.getInstance().getFormatterUtil().getSpeedFormat(), new SummaryType.AvgSummaryType<Double>()));
-        totals.setRenderer(columnConfigDistance, new AggregationNumberSummaryRenderer<Position, Double>(ApplicationContext.getInstance().getFormatterUtil().getDistanceFormat(), new SummaryType.SumSummaryType<Double>()));
+        totals.setRenderer(columnConfigDistance, new AggregationRenderer<Position>() {
+            @Override
+            public SafeHtml render(int colIndex, Grid<Position> grid) {
+                return totalDistance == null ? SafeHtmlUtils.EMPTY_SAFE_HTML
+                        : SafeHtmlUtils.fromString(ApplicationContext.getInstance().getFormatterUtil().getDistanceFormat().format(totalDistance));
+            }
+        });
 
         columnModel.addAggregationRow(totals);
 
@@ -229,6 +245,17 @@ public class ArchiveView implements SelectionChangedEvent.SelectionChangedHandle
         grid.getSelectionModel().addSelectionChangedHandler(this);
         grid.getSelectionModel().setSelectionMode(SelectionMode.SINGLE);
 
+        // load next page when grid is scrolled close to the end
+        grid.addBodyScrollHandler(new BodyScrollEvent.BodyScrollHandler() {
+            @Override
+            public void onBodyScroll(BodyScrollEvent event) {
+                XElement scroller = grid.getView().getScroller();
+                if (scroller.getScrollTop() + scroller.getClientHeight() >= scroller.getScrollHeight() - scroller.getClientHeight()) {
+                    ArchiveView.this.archiveHandler.onLoadMore();
+                }
+            }
+        });
+
         // Initialize with current time
         long min = 60 * 1000;
         Date now = new Date();
@@ -344,7 +371,18 @@ public class ArchiveView implements SelectionChangedEvent.SelectionChangedHandle
     };
 
     public void selectPosition(Position position) {
-        grid.getSelectionModel().select(positionStore.findModel(position), false);
+        Position model = positionStore.findModel(position);
+        if (model == null) {
+            // page with position is not loaded yet
+            grid.getSelectionModel().deselectAll();
+        } else {
+            grid.getSelectionModel().select(model, false);
+        }
+    }
+
+    public void setTotalDistance(Double totalDistance) {
+        this.totalDistance = totalDistance;
+        grid.getView().refresh(false);
     }
 
     public void selectDevice(Device device) {
@@ -83,6 +83,9 @@ public class DeviceDialog implements Editor<Device> {
     @UiField
     NumberField<Double> idleSpeedThreshold;
 
+    @UiField
+    NumberField<Integer> retentionDays;
+
     ToggleGroup iconRadioGroup = new ToggleGroup();
 
     public DeviceDialog(Device device, DeviceHandler deviceHandler) {
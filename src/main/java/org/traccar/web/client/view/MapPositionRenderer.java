@@ -108,6 +108,7 @@ public class MapPositionRenderer {
 
     private List<VectorFeature> tracks = new ArrayList<VectorFeature>();
     private List<VectorFeature> labels = new ArrayList<VectorFeature>();
+    private Map<Long, VectorFeature> deviceLabels = new HashMap<Long, VectorFeature>(); // Device.id -> name label
 
     private final DateTimeFormat timeFormat = DateTimeFormat.getFormat(DateTimeFormat.PredefinedFormat.HOUR24_MINUTE);
 
@@ -147,6 +148,77 @@ public class MapPositionRenderer {
         }
     }
 
+    /**
+     * Replaces markers and name labels of devices with specified positions, other markers remain untouched
+     */
+    public void updatePositions(List<Position> positions, Collection<Long> removedDeviceIds) {
+        boolean reselect = false;
+        for (Long deviceId : removedDeviceIds) {
+            removeDevicePosition(deviceId);
+        }
+        for (Position position : positions) {
+            Long deviceId = position.getDevice().getId();
+            removeDevicePosition(deviceId);
+            reselect |= deviceId.equals(selectedDeviceId);
+
+            Marker marker = new Marker(
+                    mapView.createLonLat(position.getLongitude(), position.getLatitude()),
+                    MarkerIconFactory.getIcon(position.getIconType(), false));
+            markerMap.put(position.getId(), marker);
+            deviceMap.put(deviceId, position.getId());
+            positionMap.put(position.getId(), position);
+            addSelectEvent(marker, position);
+            addMouseEvent(marker, position);
+            getMarkerLayer().addMarker(marker);
+
+            VectorFeature label = createDeviceNameLabel(position);
+            getVectorLayer().addFeature(label);
+            deviceLabels.put(deviceId, label);
+        }
+
+        if (selectedPositionId != null && !markerMap.containsKey(selectedPositionId)) {
+            selectedPositionId = null;
+        }
+
+        if (selectedDeviceId != null) {
+            if (!deviceMap.containsKey(selectedDeviceId)) {
+                selectedDeviceId = null;
+            } else if (reselect) {
+                selectPosition(null, deviceMap.get(selectedDeviceId), false);
+            }
+        }
+    }
+
+    private void removeDevicePosition(Long deviceId) {
+        Long positionId = deviceMap.remove(deviceId);
+        if (positionId != null) {
+            Marker marker = markerMap.remove(positionId);
+            if (marker != null) {
+                getMarkerLayer().removeMarker(marker);
+            }
+            positionMap.remove(positionId);
+        }
+        VectorFeature label = deviceLabels.remove(deviceId);
+        if (label != null) {
+            getVectorLayer().removeFeature(label);
+            label.destroy();
+        }
+    }
+
+    private VectorFeature createDeviceNameLabel(Position position) {
+        org.gwtopenmaps.openlayers.client.Style st = new org.gwtopenmaps.openlayers.client.Style();
+        st.setLabel(position.getDevice().getName());
+        st.setLabelXOffset(0);
+        st.setLabelYOffset(-12);
+        st.setLabelAlign("cb");
+        st.setFontColor("#0000FF");
+        st.setFontSize("12");
+        st.setFill(false);
+        st.setStroke(false);
+
+        return new VectorFeature(mapView.createPoint(position.getLongitude(), position.getLatitude()), st);
+    }
+
     public void showDeviceName(List<Position> positions) {
         for (VectorFeature label : labels) {
             getVectorLayer().removeFeature(label);
@@ -155,17 +227,7 @@ public class MapPositionRenderer {
         labels.clear();
 
         for (Position position : positions) {
-            org.gwtopenmaps.openlayers.client.Style st = new org.gwtopenmaps.openlayers.client.Style();
-            st.setLabel(position.getDevice().getName());
-            st.setLabelXOffset(0);
-            st.setLabelYOffset(-12);
-            st.setLabelAlign("cb");
-            st.setFontColor("#0000FF");
-            st.setFontSize("12");
-            st.setFill(false);
-            st.setStroke(false);
-
-            final VectorFeature point = new VectorFeature(mapView.createPoint(position.getLongitude(), position.getLatitude()), st);
+            VectorFeature point = createDeviceNameLabel(position);
             getVectorLayer().addFeature(point);
             labels.add(point);
         }
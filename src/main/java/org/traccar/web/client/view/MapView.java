@@ -15,6 +15,7 @@
  */
 package org.traccar.web.client.view;
 
+import java.util.Collection;
 import java.util.List;
 
 import com.google.gwt.core.client.GWT;
@@ -227,6 +228,10 @@ public class MapView {
         latestPositionRenderer.showPositions(positions);
     }
 
+    public void updateLatestPositions(List<Position> positions, Collection<Long> removedDeviceIds) {
+        latestPositionRenderer.updatePositions(positions, removedDeviceIds);
+    }
+
     public void showDeviceName(List<Position> positions) {
         latestPositionRenderer.showDeviceName(positions);
     }
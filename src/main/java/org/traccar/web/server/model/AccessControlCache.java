@@ -0,0 +1,230 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.server.model;
+
+import org.traccar.web.shared.model.User;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.persistence.EntityManager;
+import java.util.*;
+
+/**
+ * Keeps in memory identifiers of devices, geo-fences and managed users available to each user.
+ *
+ * <p>Results are the same as of {@link User#getAllAvailableDevices()}, {@link User#getAllAvailableGeoFences()}
+ * and {@link User#getAllManagedUsers()}, but instead of walking lazy collections user by user the whole
+ * graph of users, managers and sharing is loaded with three queries. Closure of each user is calculated
+ * on first access. Changes of sharing are applied to the graph and drop closures of affected users only,
+ * other changes (users, roles, removal of devices and geo-fences) invalidate the whole graph. Graph is also
+ * reloaded periodically to pick up changes made by other application instances.</p>
+ */
+@Singleton
+public class AccessControlCache {
+    static final long RELOAD_INTERVAL = 60 * 1000;
+
+    private static class Node {
+        final long id;
+        final Long managedById;
+        final boolean manager;
+        final Set<Long> managedUserIds = new HashSet<Long>();
+        final Set<Long> deviceIds = new HashSet<Long>();
+        final Set<Long> geoFenceIds = new HashSet<Long>();
+
+        Set<Long> allDeviceIds;
+        Set<Long> lowerGeoFenceIds;
+        Set<Long> allGeoFenceIds;
+        Set<Long> allManagedUserIds;
+
+        Node(long id, Long managedById, boolean manager) {
+            this.id = id;
+            this.managedById = managedById;
+            this.manager = manager;
+        }
+    }
+
+    @Inject
+    private Provider<EntityManager> entityManager;
+
+    private Map<Long, Node> nodes;
+    private long loadTime;
+
+    public synchronized Set<Long> getDeviceIds(User user) {
+        Node node = getNode(user.getId());
+        return node == null ? Collections.<Long>emptySet() : getAllDeviceIds(node);
+    }
+
+    public synchronized Set<Long> getGeoFenceIds(User user) {
+        Node node = getNode(user.getId());
+        return node == null ? Collections.<Long>emptySet() : getAllGeoFenceIds(node);
+    }
+
+    public synchronized Set<Long> getManagedUserIds(User user) {
+        Node node = getNode(user.getId());
+        return node == null ? Collections.<Long>emptySet() : getAllManagedUserIds(node);
+    }
+
+    public synchronized boolean hasAccessToDevice(User user, long deviceId) {
+        return getDeviceIds(user).contains(deviceId);
+    }
+
+    public synchronized boolean hasAccessToGeoFence(User user, long geoFenceId) {
+        return getGeoFenceIds(user).contains(geoFenceId);
+    }
+
+    public synchronized void deviceShared(long userId, long deviceId, boolean shared) {
+        Node node = nodes == null ? null : nodes.get(userId);
+        if (node == null) {
+            invalidate();
+            return;
+        }
+        if (shared ? node.deviceIds.add(deviceId) : node.deviceIds.remove(deviceId)) {
+            for (Node n = node; n != null; n = n.managedById == null ? null : nodes.get(n.managedById)) {
+                n.allDeviceIds = null;
+            }
+        }
+    }
+
+    public synchronized void geoFenceShared(long userId, long geoFenceId, boolean shared) {
+        Node node = nodes == null ? null : nodes.get(userId);
+        if (node == null) {
+            invalidate();
+            return;
+        }
+        if (shared ? node.geoFenceIds.add(geoFenceId) : node.geoFenceIds.remove(geoFenceId)) {
+            // geo-fences are visible to managers and to all managed users
+            for (Node n = node; n != null; n = n.managedById == null ? null : nodes.get(n.managedById)) {
+                n.lowerGeoFenceIds = null;
+                n.allGeoFenceIds = null;
+            }
+            dropGeoFences(node);
+        }
+    }
+
+    private void dropGeoFences(Node node) {
+        for (Long managedUserId : node.managedUserIds) {
+            Node managedUser = nodes.get(managedUserId);
+            if (managedUser != null) {
+                managedUser.allGeoFenceIds = null;
+                dropGeoFences(managedUser);
+            }
+        }
+    }
+
+    public synchronized void invalidate() {
+        nodes = null;
+    }
+
+    private Node getNode(long userId) {
+        if (nodes == null || System.currentTimeMillis() - loadTime >= RELOAD_INTERVAL) {
+            load();
+        }
+        Node node = nodes.get(userId);
+        if (node == null) {
+            // user may be created by other application instance
+            load();
+            node = nodes.get(userId);
+        }
+        return node;
+    }
+
+    private void load() {
+        EntityManager entityManager = this.entityManager.get();
+        Map<Long, Node> nodes = new HashMap<Long, Node>();
+        for (Object[] row : entityManager.createQuery("SELECT u.id, m.id, u.manager FROM User u LEFT JOIN u.managedBy m", Object[].class).getResultList()) {
+            Long id = (Long) row[0];
+            nodes.put(id, new Node(id, (Long) row[1], Boolean.TRUE.equals(row[2])));
+        }
+        for (Node node : nodes.values()) {
+            Node manager = node.managedById == null ? null : nodes.get(node.managedById);
+            if (manager != null) {
+                manager.managedUserIds.add(node.id);
+            }
+        }
+        for (Object[] row : entityManager.createQuery("SELECT u.id, d.id FROM User u INNER JOIN u.devices d", Object[].class).getResultList()) {
+            Node node = nodes.get(row[0]);
+            if (node != null) {
+                node.deviceIds.add((Long) row[1]);
+            }
+        }
+        for (Object[] row : entityManager.createQuery("SELECT u.id, g.id FROM User u INNER JOIN u.geoFences g", Object[].class).getResultList()) {
+            Node node = nodes.get(row[0]);
+            if (node != null) {
+                node.geoFenceIds.add((Long) row[1]);
+            }
+        }
+        this.nodes = nodes;
+        this.loadTime = System.currentTimeMillis();
+    }
+
+    private Set<Long> getAllDeviceIds(Node node) {
+        if (node.allDeviceIds == null) {
+            Set<Long> result = new HashSet<Long>(node.deviceIds);
+            if (node.manager) {
+                for (Long managedUserId : node.managedUserIds) {
+                    Node managedUser = nodes.get(managedUserId);
+                    if (managedUser != null) {
+                        result.addAll(getAllDeviceIds(managedUser));
+                    }
+                }
+            }
+            node.allDeviceIds = Collections.unmodifiableSet(result);
+        }
+        return node.allDeviceIds;
+    }
+
+    private Set<Long> getLowerGeoFenceIds(Node node) {
+        if (node.lowerGeoFenceIds == null) {
+            Set<Long> result = new HashSet<Long>(node.geoFenceIds);
+            if (node.manager) {
+                for (Long managedUserId : node.managedUserIds) {
+                    Node managedUser = nodes.get(managedUserId);
+                    if (managedUser != null) {
+                        result.addAll(getLowerGeoFenceIds(managedUser));
+                    }
+                }
+            }
+            node.lowerGeoFenceIds = result;
+        }
+        return node.lowerGeoFenceIds;
+    }
+
+    private Set<Long> getAllGeoFenceIds(Node node) {
+        if (node.allGeoFenceIds == null) {
+            Set<Long> result = new HashSet<Long>(getLowerGeoFenceIds(node));
+            for (Node n = node.managedById == null ? null : nodes.get(node.managedById); n != null; n = n.managedById == null ? null : nodes.get(n.managedById)) {
+                result.addAll(n.geoFenceIds);
+            }
+            node.allGeoFenceIds = Collections.unmodifiableSet(result);
+        }
+        return node.allGeoFenceIds;
+    }
+
+    private Set<Long> getAllManagedUserIds(Node node) {
+        if (node.allManagedUserIds == null) {
+            Set<Long> result = new HashSet<Long>(node.managedUserIds);
+            for (Long managedUserId : node.managedUserIds) {
+                Node managedUser = nodes.get(managedUserId);
+                if (managedUser != null && managedUser.manager) {
+                    result.addAll(getAllManagedUserIds(managedUser));
+                }
+            }
+            node.allManagedUserIds = Collections.unmodifiableSet(result);
+        }
+        return node.allManagedUserIds;
+    }
+}
@@ -4,18 +4,76 @@ import org.traccar.web.shared.model.ApplicationSettings;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
+import javax.inject.Singleton;
 import javax.persistence.EntityManager;
 import javax.persistence.TypedQuery;
 import java.util.List;
 
+/**
+ * Keeps application settings in memory. Cached copy is returned without touching database for
+ * {@link #CHECK_INTERVAL} milliseconds, after that only version of settings is queried and settings are
+ * re-loaded when it was changed (i.e. by other application instance).
+ */
+@Singleton
 public class ApplicationSettingsProvider implements Provider<ApplicationSettings> {
+    static final long CHECK_INTERVAL = 5 * 1000;
+
     @Inject
     private Provider<EntityManager> entityManager;
 
+    private volatile ApplicationSettings settings;
+    private volatile long checkTime;
+
     @Override
     public ApplicationSettings get() {
-        TypedQuery<ApplicationSettings> query = entityManager.get().createQuery("SELECT x FROM ApplicationSettings x", ApplicationSettings.class);
+        ApplicationSettings settings = this.settings;
+        if (settings != null && System.currentTimeMillis() - checkTime < CHECK_INTERVAL) {
+            return settings;
+        }
+        return load();
+    }
+
+    private synchronized ApplicationSettings load() {
+        long now = System.currentTimeMillis();
+        ApplicationSettings settings = this.settings;
+        if (settings != null) {
+            if (now - checkTime < CHECK_INTERVAL) {
+                return settings;
+            }
+            Long version = getVersion();
+            if (version != null && version == settings.getVersion()) {
+                checkTime = now;
+                return settings;
+            }
+        }
+
+        EntityManager entityManager = this.entityManager.get();
+        TypedQuery<ApplicationSettings> query = entityManager.createQuery("SELECT x FROM ApplicationSettings x", ApplicationSettings.class);
         List<ApplicationSettings> resultList = query.getResultList();
-        return resultList.isEmpty() ? new ApplicationSettings() : resultList.get(0);
+        if (resultList.isEmpty()) {
+            this.settings = null;
+            return new ApplicationSettings();
+        }
+        settings = resultList.get(0);
+        // cached copy is shared between requests, so it must not be bound to the current entity manager
+        entityManager.detach(settings);
+        this.settings = settings;
+        this.checkTime = now;
+        return settings;
+    }
+
+    /**
+     * @return version of stored settings or <code>null</code> if there are no settings
+     */
+    Long getVersion() {
+        List<Long> versions = entityManager.get().createQuery("SELECT x.version FROM ApplicationSettings x", Long.class).getResultList();
+        return versions.isEmpty() ? null : versions.get(0);
+    }
+
+    /**
+     * Forces reload of settings on next access
+     */
+    public synchronized void invalidate() {
+        settings = null;
     }
 }
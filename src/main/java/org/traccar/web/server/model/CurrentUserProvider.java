@@ -23,8 +23,13 @@ import javax.persistence.EntityManager;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 
+/**
+ * Provides user logged in to the current HTTP session. User is remembered in request attribute and reused
+ * while it remains attached to the persistence context of the request.
+ */
 public class CurrentUserProvider implements Provider<User> {
     static final String ATTRIBUTE_USER_ID = "traccar.user.id";
+    static final String ATTRIBUTE_REQUEST_USER = "traccar.request.user";
 
     @Inject
     private Provider<HttpServletRequest> request;
@@ -33,8 +38,19 @@ public class CurrentUserProvider implements Provider<User> {
 
     @Override
     public User get() {
-        HttpSession session = request.get().getSession();
+        HttpServletRequest request = this.request.get();
+        HttpSession session = request.getSession();
         Long userId = (Long) session.getAttribute(ATTRIBUTE_USER_ID);
-        return userId == null ? null : entityManager.get().find(User.class, userId);
+        if (userId == null) {
+            return null;
+        }
+
+        EntityManager entityManager = this.entityManager.get();
+        User user = (User) request.getAttribute(ATTRIBUTE_REQUEST_USER);
+        if (user == null || user.getId() != userId || !entityManager.contains(user)) {
+            user = entityManager.find(User.class, userId);
+            request.setAttribute(ATTRIBUTE_REQUEST_USER, user);
+        }
+        return user;
     }
 }
@@ -43,7 +43,9 @@ public class DBMigrations {
                 new SetDefaultHashImplementation(),
                 new SetDefaultUserSettings(),
                 new SetArchiveDefaultColumns(),
-                new SetAllDevicesFlag()
+                new SetAllDevicesFlag(),
+                new SetApplicationSettingsVersion(),
+                new SetDefaultRetentionDays()
         }) {
             em.getTransaction().begin();
             try {
@@ -280,4 +282,25 @@ public class DBMigrations {
                     .executeUpdate();
         }
     }
+
+    static class SetApplicationSettingsVersion implements Migration {
+        @Override
+        public void migrate(EntityManager em) throws Exception {
+            em.createQuery("UPDATE " + ApplicationSettings.class.getName() + " S SET S.version = :v WHERE S.version IS NULL")
+                    .setParameter("v", 0L)
+                    .executeUpdate();
+        }
+    }
+
+    static class SetDefaultRetentionDays implements Migration {
+        @Override
+        public void migrate(EntityManager em) throws Exception {
+            em.createQuery("UPDATE " + ApplicationSettings.class.getName() + " S SET S.retentionDays = :d WHERE S.retentionDays IS NULL")
+                    .setParameter("d", 0)
+                    .executeUpdate();
+            em.createQuery("UPDATE " + Device.class.getName() + " D SET D.retentionDays = :d WHERE D.retentionDays IS NULL")
+                    .setParameter("d", 0)
+                    .executeUpdate();
+        }
+    }
 }
@@ -30,10 +30,13 @@ import javax.persistence.TypedQuery;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
 
 import com.google.gwt.user.server.rpc.RemoteServiceServlet;
 import com.google.inject.persist.Transactional;
 
+import org.hibernate.Session;
 import org.hibernate.proxy.HibernateProxy;
 import org.traccar.web.client.model.DataService;
 import org.traccar.web.client.model.EventService;
@@ -42,6 +45,8 @@ import org.traccar.web.shared.model.*;
 @Singleton
 public class DataServiceImpl extends RemoteServiceServlet implements DataService {
     private static final long serialVersionUID = 1;
+    private static final String ATTRIBUTE_DELIVERED_DEVICES = "traccar.latest.positions.devices";
+    private static final int DELIVERED_VERSIONS_TO_KEEP = 4;
 
     @Inject
     private Provider<User> sessionUser;
@@ -58,6 +63,18 @@ public class DataServiceImpl extends RemoteServiceServlet implements DataService
     @Inject
     private EventService eventService;
 
+    @Inject
+    private LatestPositionCache latestPositionCache;
+
+    @Inject
+    private AccessControlCache accessControlCache;
+
+    @Inject
+    private UserRolesProvider userRolesProvider;
+
+    @Inject
+    private ApplicationSettingsProvider applicationSettingsProvider;
+
     @Override
     public void init() throws ServletException {
         super.init();
@@ -76,6 +93,58 @@ public class DataServiceImpl extends RemoteServiceServlet implements DataService
         return entityManager.get();
     }
 
+    private final Runnable invalidateAccessControl = new Runnable() {
+        @Override
+        public void run() {
+            accessControlCache.invalidate();
+        }
+    };
+
+    private final Runnable invalidateUserRoles = new Runnable() {
+        @Override
+        public void run() {
+            userRolesProvider.invalidate();
+        }
+    };
+
+    /**
+     * Runs the task once the current transaction is committed, so that caches are not
+     * reloaded by concurrent requests from data which is not yet committed and do not
+     * keep changes which were rolled back
+     */
+    private void afterCommit(final Runnable task) {
+        getSessionEntityManager().unwrap(Session.class).getTransaction().registerSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED) {
+                    task.run();
+                }
+            }
+        });
+    }
+
+    private void deviceShared(final long userId, final long deviceId, final boolean shared) {
+        afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                accessControlCache.deviceShared(userId, deviceId, shared);
+            }
+        });
+    }
+
+    private void geoFenceShared(final long userId, final long geoFenceId, final boolean shared) {
+        afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                accessControlCache.geoFenceShared(userId, geoFenceId, shared);
+            }
+        });
+    }
+
     private void setSessionUser(User user) {
         HttpSession session = request.get().getSession();
         if (user != null) {
@@ -83,6 +152,8 @@ public class DataServiceImpl extends RemoteServiceServlet implements DataService
         } else {
             session.removeAttribute(CurrentUserProvider.ATTRIBUTE_USER_ID);
         }
+        session.removeAttribute(UserRolesProvider.ATTRIBUTE_USER_ROLES);
+        request.get().removeAttribute(CurrentUserProvider.ATTRIBUTE_REQUEST_USER);
     }
 
     User getSessionUser() {
@@ -178,7 +249,7 @@ public class DataServiceImpl extends RemoteServiceServlet implements DataService
         if (currentUser.getAdmin()) {
             users.addAll(getSessionEntityManager().createQuery("SELECT x FROM User x", User.class).getResultList());
         } else {
-            users.addAll(currentUser.getAllManagedUsers());
+            users.addAll(findUsers(accessControlCache.getManagedUserIds(currentUser)));
         }
         for (User user : users) {
             fillUserSettings(user);
@@ -214,6 +285,7 @@ public class DataServiceImpl extends RemoteServiceServlet implements DataService
             user.setNotificationEvents(user.getTransferNotificationEvents());
             getSessionEntityManager().persist(user);
             getSessionEntityManager().persist(UIStateEntry.createDefaultArchiveGridStateEntry(user));
+            afterCommit(invalidateAccessControl);
             return fillUserSettings(user);
         } else {
             throw new IllegalStateException();
@@ -245,6 +317,8 @@ public class DataServiceImpl extends RemoteServiceServlet implements DataService
                 currentUser.setEmail(user.getEmail());
                 currentUser.setNotificationEvents(user.getTransferNotificationEvents());
                 entityManager.merge(currentUser);
+                afterCommit(invalidateAccessControl);
+                afterCommit(invalidateUserRoles);
                 user = currentUser;
             } else {
                 // update password
@@ -279,7 +353,7 @@ public class DataServiceImpl extends RemoteServiceServlet implements DataService
             throw new IllegalArgumentException();
         }
         // Allow manager to remove users only managed by himself
-        if (!getSessionUser().getAdmin() && !getSessionUser().getAllManagedUsers().contains(user)) {
+        if (!getSessionUser().getAdmin() && !accessControlCache.getManagedUserIds(getSessionUser()).contains(user.getId())) {
             throw new SecurityException();
         }
         entityManager.createQuery("DELETE FROM UIStateEntry s WHERE s.user=:user").setParameter("user", user).executeUpdate();
@@ -290,6 +364,8 @@ public class DataServiceImpl extends RemoteServiceServlet implements DataService
             geoFence.getUsers().remove(user);
         }
         entityManager.remove(user);
+        afterCommit(invalidateAccessControl);
+        afterCommit(invalidateUserRoles);
         return fillUserSettings(user);
     }
 
@@ -301,7 +377,13 @@ public class DataServiceImpl extends RemoteServiceServlet implements DataService
         if (user.getAdmin()) {
             return getSessionEntityManager().createQuery("SELECT x FROM Device x LEFT JOIN FETCH x.latestPosition").getResultList();
         }
-        return user.getAllAvailableDevices();
+        Set<Long> deviceIds = accessControlCache.getDeviceIds(user);
+        if (deviceIds.isEmpty()) {
+            return new LinkedList<Device>();
+        }
+        return getSessionEntityManager().createQuery("SELECT x FROM Device x LEFT JOIN FETCH x.latestPosition WHERE x.id IN (:ids)", Device.class)
+                .setParameter("ids", deviceIds)
+                .getResultList();
     }
 
     @Transactional
@@ -326,6 +408,7 @@ public class DataServiceImpl extends RemoteServiceServlet implements DataService
             device.setUsers(new HashSet<User>(1));
             device.getUsers().add(user);
             entityManager.persist(device);
+            deviceShared(user.getId(), device.getId(), true);
             return device;
         } else {
             throw new DeviceExistsException();
@@ -355,7 +438,15 @@ public class DataServiceImpl extends RemoteServiceServlet implements DataService
             tmp_device.setUniqueId(device.getUniqueId());
             tmp_device.setTimeout(device.getTimeout());
             tmp_device.setIdleSpeedThreshold(device.getIdleSpeedThreshold());
+            tmp_device.setRetentionDays(device.getRetentionDays());
             tmp_device.setIconType(device.getIconType());
+            final Device changed = new Device(tmp_device);
+            afterCommit(new Runnable() {
+                @Override
+                public void run() {
+                    latestPositionCache.deviceChanged(changed);
+                }
+            });
             return tmp_device;
         } else {
             throw new DeviceExistsException();
@@ -386,12 +477,22 @@ public class DataServiceImpl extends RemoteServiceServlet implements DataService
             query.setParameter("device", device);
             query.executeUpdate();
 
+            query = entityManager.createQuery("DELETE FROM HourlyRollup x WHERE x.device = :device");
+            query.setParameter("device", device);
+            query.executeUpdate();
+
+            query = entityManager.createQuery("DELETE FROM DailyRollup x WHERE x.device = :device");
+            query.setParameter("device", device);
+            query.executeUpdate();
+
             query = entityManager.createQuery("DELETE FROM Position x WHERE x.device = :device");
             query.setParameter("device", device);
             query.executeUpdate();
 
             entityManager.remove(device);
+            latestPositionCache.deviceRemoved(device.getId());
         }
+        afterCommit(invalidateAccessControl);
         return device;
     }
 
@@ -400,113 +501,254 @@ public class DataServiceImpl extends RemoteServiceServlet implements DataService
     @Override
     public List<Position> getPositions(Device device, Date from, Date to, boolean filter) {
         EntityManager entityManager = getSessionEntityManager();
-        UserSettings filters = getSessionUser().getUserSettings();
+        PositionFilter positionFilter = new PositionFilter(getSessionUser().getUserSettings(), filter);
 
         List<Position> positions = new LinkedList<Position>();
-        String queryString = "SELECT x FROM Position x WHERE x.device = :device AND x.time BETWEEN :from AND :to";
+        for (Position position : positionFilter.createQuery(entityManager, device, from, to).getResultList()) {
+            if (positionFilter.accept(position)) {
+                positions.add(position);
+            }
+        }
+        return positions;
+    }
 
-        if (filter) {
-            if (filters.isHideZeroCoordinates()) {
-                queryString += " AND (x.latitude != 0 OR x.longitude != 0)";
+    @Transactional
+    @RequireUser
+    @Override
+    public List<Position> getPositions(Device device, Date from, Date to, boolean filter, Date afterTime, long afterId, int limit) {
+        EntityManager entityManager = getSessionEntityManager();
+        PositionFilter positionFilter = new PositionFilter(getSessionUser().getUserSettings(), filter);
+        if (afterTime != null) {
+            // distance and duplicates are calculated from the last position of previous page
+            Position previous = entityManager.find(Position.class, afterId);
+            if (previous != null) {
+                positionFilter.accept(previous);
             }
-            if (filters.isHideInvalidLocations()) {
-                queryString += " AND x.valid = TRUE";
+        }
+
+        List<Position> positions = new ArrayList<Position>();
+        while (positions.size() < limit) {
+            List<Position> page = positionFilter.createQuery(entityManager, device, from, to, afterTime, afterId)
+                    .setMaxResults(limit)
+                    .getResultList();
+            for (Position position : page) {
+                afterTime = position.getTime();
+                afterId = position.getId();
+                if (positionFilter.accept(position)) {
+                    positions.add(position);
+                    if (positions.size() == limit) {
+                        break;
+                    }
+                }
             }
-            if (filters.getSpeedModifier() != null && filters.getSpeedForFilter() != null) {
-                queryString += " AND x.speed " + filters.getSpeedModifier() + " :speed";
+            if (page.size() < limit) {
+                break;
             }
         }
+        return positions;
+    }
 
-        TypedQuery<Position> query = entityManager.createQuery(queryString, Position.class);
-        query.setParameter("device", device);
-        query.setParameter("from", from);
-        query.setParameter("to", to);
-
-        if (filter) {
-            if (filters.getSpeedModifier() != null && filters.getSpeedForFilter() != null) {
-                query.setParameter("speed", filters.getSpeedUnit().toKnots(filters.getSpeedForFilter()));
-            }
+    @Transactional
+    @RequireUser
+    @Override
+    public List<Position> getPositions(Device device, Date from, Date to, boolean filter, double tolerance) {
+        if (tolerance <= 0) {
+            return getPositions(device, from, to, filter);
         }
 
-        List<Position> queryResult = query.getResultList();
+        EntityManager entityManager = getSessionEntityManager();
+        PositionFilter positionFilter = new PositionFilter(getSessionUser().getUserSettings(), filter);
 
-        for (int i = 0; i < queryResult.size(); i++) {
-            boolean add = true;
-            if (i > 0) {
-                Position positionA = queryResult.get(i - 1);
-                Position positionB = queryResult.get(i);
+        Set<Long> eventPositionIds = new HashSet<Long>(entityManager.createQuery(
+                "SELECT e.position.id FROM DeviceEvent e WHERE e.device = :device AND e.position.time BETWEEN :from AND :to", Long.class)
+                .setParameter("device", device)
+                .setParameter("from", from)
+                .setParameter("to", to)
+                .getResultList());
+        TrackSimplifier simplifier = new TrackSimplifier(tolerance, eventPositionIds, device.getIdleSpeedThreshold());
 
-                positionB.setDistance(GeoFenceCalculator.getDistance(positionA.getLongitude(), positionA.getLatitude(), positionB.getLongitude(), positionB.getLatitude()));
+        PositionScroll scroll = new PositionScroll(entityManager, positionFilter.createQuery(entityManager, device, from, to, null, 0), positionFilter);
+        try {
+            while (scroll.next()) {
+                simplifier.add(scroll.get());
+            }
+        } finally {
+            scroll.close();
+        }
+        return simplifier.finish();
+    }
 
-                if (filter && filters.isHideDuplicates()) {
-                    add = !positionA.getTime().equals(positionB.getTime());
-                }
-                if (add && filter && filters.getMinDistance() != null) {
-                    add = positionB.getDistance() >= filters.getMinDistance();
+    @Transactional
+    @RequireUser
+    @Override
+    public PositionArchive getPositionArchive(Device device, Date from, Date to, boolean filter, double tolerance, boolean attributes) {
+        EntityManager entityManager = getSessionEntityManager();
+        device = entityManager.find(Device.class, device.getId());
+        PositionArchiveEncoder encoder = new PositionArchiveEncoder(device, attributes);
+
+        if (tolerance > 0) {
+            for (Position position : getPositions(device, from, to, filter, tolerance)) {
+                encoder.add(position);
+            }
+        } else {
+            PositionFilter positionFilter = new PositionFilter(getSessionUser().getUserSettings(), filter);
+            PositionScroll scroll = new PositionScroll(entityManager, positionFilter.createQuery(entityManager, device, from, to, null, 0), positionFilter);
+            try {
+                while (scroll.next()) {
+                    encoder.add(scroll.get());
                 }
+            } finally {
+                scroll.close();
             }
-            if (add) positions.add(queryResult.get(i));
         }
-        return positions;
+        return encoder.encode();
     }
 
-    @RequireUser
     @Transactional
+    @RequireUser
     @Override
-    public List<Position> getLatestPositions() {
-        List<Position> positions = new LinkedList<Position>();
-        List<Device> devices = getDevices();
-        List<GeoFence> geoFences = getGeoFences(false);
-        GeoFenceCalculator geoFenceCalculator = new GeoFenceCalculator(getGeoFences());
-        if (devices != null && !devices.isEmpty()) {
-            for (Device device : devices) {
-                if (device.getLatestPosition() != null) {
-                    Position position = device.getLatestPosition();
-                    // calculate geo-fences
-                    for (GeoFence geoFence : geoFences) {
-                        if (geoFenceCalculator.contains(geoFence, position)) {
-                            if (position.getGeoFences() == null) {
-                                position.setGeoFences(new LinkedList<GeoFence>());
-                            }
-                            position.getGeoFences().add(geoFence);
-                        }
-                    }
+    public TripSummary getTripSummary(Device device, Date from, Date to, boolean filter) {
+        EntityManager entityManager = getSessionEntityManager();
+        device = entityManager.find(Device.class, device.getId());
+        PositionFilter positionFilter = new PositionFilter(getSessionUser().getUserSettings(), filter);
+        TripDetector tripDetector = new TripDetector(device);
 
-                    positions.add(position);
-                }
+        PositionScroll scroll = new PositionScroll(entityManager, positionFilter.createQuery(entityManager, device, from, to, null, 0), positionFilter);
+        try {
+            while (scroll.next()) {
+                tripDetector.add(scroll.get());
             }
+        } finally {
+            scroll.close();
         }
+        return tripDetector.finish();
+    }
+
+    @Transactional
+    @RequireUser
+    @Override
+    public List<PositionRollup> getRollups(Device device, Date from, Date to) {
+        EntityManager entityManager = getSessionEntityManager();
+        device = entityManager.find(Device.class, device.getId());
+        return RollupUpdater.getRollups(entityManager, device, from, to);
+    }
+
+    @RequireUser
+    @Transactional
+    @Override
+    public List<Position> getLatestPositions() {
+        List<Position> positions = latestPositionCache.get(getAvailableDeviceIds());
+        calculateGeoFences(positions);
         return positions;
     }
 
     @RequireUser
     @Transactional
     @Override
-    public List<Position> getLatestNonIdlePositions() {
-        List<Position> positions = new LinkedList<Position>();
-        List<Device> devices = getDevices();
-        if (devices != null && !devices.isEmpty()) {
-            EntityManager entityManager = getSessionEntityManager();
+    public LatestPositions getLatestPositionsSince(long version) {
+        Set<Long> knownDeviceIds = version == 0 ? null : getDeliveredDevices(version);
 
-            for (Device device : devices) {
-                List<Position> position = entityManager.createQuery("SELECT p FROM Position p WHERE p.device = :device AND p.speed > 0 ORDER BY time DESC", Position.class)
-                        .setParameter("device", device)
-                        .setMaxResults(1)
-                        .getResultList();
-
-                if (position.isEmpty()) {
-                    position = entityManager.createQuery("SELECT p FROM Position p WHERE p.device = :device ORDER BY time ASC", Position.class)
-                        .setParameter("device", device)
-                        .setMaxResults(1)
-                        .getResultList();
-                }
+        LatestPositions result = new LatestPositions();
+        result.setFull(knownDeviceIds == null);
+
+        Set<Long> deviceIds = getAvailableDeviceIds();
+        for (Position position : latestPositionCache.get(deviceIds)) {
+            // devices that became available since previous request may have positions older than version
+            if (knownDeviceIds == null || position.getId() > version || !knownDeviceIds.contains(position.getDevice().getId())) {
+                result.getPositions().add(position);
+            }
+        }
 
-                if (!position.isEmpty()) {
-                    positions.add(position.get(0));
+        if (knownDeviceIds != null) {
+            for (Long deviceId : knownDeviceIds) {
+                if (!deviceIds.contains(deviceId)) {
+                    result.getRemovedDeviceIds().add(deviceId);
                 }
             }
         }
-        return positions;
+
+        long newVersion = Math.max(version, 0);
+        for (Position position : result.getPositions()) {
+            newVersion = Math.max(newVersion, position.getId());
+        }
+        result.setVersion(newVersion);
+        setDeliveredDevices(newVersion, deviceIds);
+
+        calculateGeoFences(result.getPositions());
+        return result;
+    }
+
+    private Set<Long> getAvailableDeviceIds() {
+        User user = getSessionUser();
+        if (user.getAdmin()) {
+            return new LinkedHashSet<Long>(getSessionEntityManager().createQuery("SELECT d.id FROM Device d", Long.class).getResultList());
+        }
+        return accessControlCache.getDeviceIds(user);
+    }
+
+    private List<User> findUsers(Set<Long> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return getSessionEntityManager().createQuery("SELECT x FROM User x WHERE x.id IN (:ids)", User.class)
+                .setParameter("ids", ids)
+                .getResultList();
+    }
+
+    private void calculateGeoFences(List<Position> positions) {
+        if (positions.isEmpty()) {
+            return;
+        }
+        List<GeoFence> geoFences = getGeoFences(false);
+        GeoFenceCalculator geoFenceCalculator = new GeoFenceCalculator(geoFences);
+        for (Position position : positions) {
+            List<GeoFence> containing = geoFenceCalculator.findContaining(position);
+            if (!containing.isEmpty()) {
+                position.setGeoFences(containing);
+            }
+        }
+    }
+
+    /**
+     * Identifiers of devices, which were available to the user when latest positions of some version
+     * were returned. Used to find devices, which became (un)available since that. Several versions are
+     * kept to support more than one browser tab per session.
+     */
+    @SuppressWarnings("unchecked")
+    private Set<Long> getDeliveredDevices(long version) {
+        HttpSession session = request.get().getSession();
+        Map<Long, Set<Long>> delivered = (Map<Long, Set<Long>>) session.getAttribute(ATTRIBUTE_DELIVERED_DEVICES);
+        if (delivered == null) {
+            return null;
+        }
+        synchronized (delivered) {
+            return delivered.get(version);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void setDeliveredDevices(long version, Set<Long> deviceIds) {
+        HttpSession session = request.get().getSession();
+        Map<Long, Set<Long>> delivered = (Map<Long, Set<Long>>) session.getAttribute(ATTRIBUTE_DELIVERED_DEVICES);
+        if (delivered == null) {
+            delivered = new LinkedHashMap<Long, Set<Long>>();
+            session.setAttribute(ATTRIBUTE_DELIVERED_DEVICES, delivered);
+        }
+        synchronized (delivered) {
+            delivered.remove(version);
+            delivered.put(version, deviceIds);
+            for (Iterator<Long> it = delivered.keySet().iterator(); delivered.size() > DELIVERED_VERSIONS_TO_KEEP; ) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    @RequireUser
+    @Transactional
+    @Override
+    public List<Position> getLatestNonIdlePositions() {
+        return latestPositionCache.getNonIdle(getAvailableDeviceIds());
     }
 
     @Transactional
@@ -525,7 +767,11 @@ public class DataServiceImpl extends RemoteServiceServlet implements DataService
     @RequireWrite
     @Override
     public void updateApplicationSettings(ApplicationSettings applicationSettings) {
+        Long version = applicationSettingsProvider.getVersion();
+        applicationSettings.setVersion(version == null ? 0 : version + 1);
         getSessionEntityManager().merge(applicationSettings);
+        getSessionEntityManager().flush();
+        applicationSettingsProvider.invalidate();
         eventService.applicationSettingsChanged();
     }
 
@@ -594,6 +840,8 @@ public class DataServiceImpl extends RemoteServiceServlet implements DataService
             user.setManager(_user.getManager());
             user.setReadOnly(_user.getReadOnly());
         }
+        afterCommit(invalidateAccessControl);
+        afterCommit(invalidateUserRoles);
     }
 
     @Transactional
@@ -626,6 +874,7 @@ public class DataServiceImpl extends RemoteServiceServlet implements DataService
                 device.getUsers().remove(user);
             }
             entityManager.merge(user);
+            deviceShared(user.getId(), device.getId(), shared);
         }
     }
 
@@ -650,7 +899,11 @@ public class DataServiceImpl extends RemoteServiceServlet implements DataService
         if (user.getAdmin()) {
             geoFences = new HashSet<GeoFence>(getSessionEntityManager().createQuery("SELECT g FROM GeoFence g LEFT JOIN FETCH g.devices", GeoFence.class).getResultList());
         } else {
-            geoFences = user.getAllAvailableGeoFences();
+            Set<Long> geoFenceIds = accessControlCache.getGeoFenceIds(user);
+            geoFences = geoFenceIds.isEmpty() ? new HashSet<GeoFence>() : new HashSet<GeoFence>(
+                    getSessionEntityManager().createQuery("SELECT g FROM GeoFence g LEFT JOIN FETCH g.devices WHERE g.id IN (:ids)", GeoFence.class)
+                            .setParameter("ids", geoFenceIds)
+                            .getResultList());
         }
 
         if (includeTransferDevices) {
@@ -675,6 +928,7 @@ public class DataServiceImpl extends RemoteServiceServlet implements DataService
         geoFence.getUsers().add(getSessionUser());
         geoFence.setDevices(geoFence.getTransferDevices());
         getSessionEntityManager().persist(geoFence);
+        geoFenceShared(getSessionUser().getId(), geoFence.getId(), true);
 
         return geoFence;
     }
@@ -725,6 +979,7 @@ public class DataServiceImpl extends RemoteServiceServlet implements DataService
 
             getSessionEntityManager().remove(geoFence);
         }
+        afterCommit(invalidateAccessControl);
         return geoFence;
     }
 
@@ -758,6 +1013,7 @@ public class DataServiceImpl extends RemoteServiceServlet implements DataService
                 geoFence.getUsers().remove(user);
             }
             entityManager.merge(user);
+            geoFenceShared(user.getId(), geoFence.getId(), shared);
         }
     }
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.server.model;
+
+import org.traccar.web.shared.model.DeviceEvent;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers identifiers of newly created {@link DeviceEvent}s to listeners inside the application.
+ *
+ * <p>Events must be published only after the transaction, which created them, is committed. Listeners are
+ * notified from the publishing thread, so they must only enqueue the work. Nothing is persisted, events
+ * published while nobody listens or lost on restart are found by polling.</p>
+ */
+@Singleton
+public class DeviceEventBus {
+    public interface Listener {
+        /**
+         * @param eventIds identifiers of created events, must not be modified
+         */
+        void eventsCreated(List<Long> eventIds);
+    }
+
+    @Inject
+    protected Logger logger;
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public void publish(List<Long> eventIds) {
+        if (eventIds.isEmpty()) {
+            return;
+        }
+        for (Listener listener : listeners) {
+            try {
+                listener.eventsCreated(eventIds);
+            } catch (RuntimeException ex) {
+                logger.log(Level.SEVERE, "Error during notification about created events", ex);
+            }
+        }
+    }
+}
@@ -25,11 +25,14 @@ import javax.inject.Provider;
 import javax.inject.Singleton;
 import javax.persistence.EntityManager;
 import javax.servlet.ServletException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -40,39 +43,134 @@ import java.util.concurrent.TimeUnit;
 public class EventServiceImpl extends RemoteServiceServlet implements EventService {
     static class DeviceState {
         Long latestPositionId;
+        /**
+         * Identifiers of geo-fences containing latest position, <code>null</code> if not known yet
+         */
+        Set<Long> geoFenceIds;
     }
 
-    public static class OfflineDetector extends ScheduledTask {
+    /**
+     * Keeps devices ordered by the time when they become offline (latest position time + timeout), the order
+     * is updated when latest positions change. Each run only processes devices, which deadline has passed.
+     */
+    public static class OfflineDetector extends ScheduledTask implements LatestPositionCache.Listener {
+        static class Deadline implements Comparable<Deadline> {
+            final long deviceId;
+            final long positionId;
+            final long time;
+
+            Deadline(long deviceId, long positionId, long time) {
+                this.deviceId = deviceId;
+                this.positionId = positionId;
+                this.time = time;
+            }
+
+            @Override
+            public int compareTo(Deadline o) {
+                return time < o.time ? -1 : (time == o.time ? 0 : 1);
+            }
+        }
+
         @Inject
         Provider<EntityManager> entityManager;
 
+        @Inject
+        LatestPositionCache latestPositionCache;
+
+        private final PriorityQueue<Deadline> deadlines = new PriorityQueue<Deadline>();
+        private final Map<Long, Deadline> deviceDeadlines = new HashMap<Long, Deadline>(); // Device.id -> Deadline
+        private final Map<Long, Long> offlinePositions = new HashMap<Long, Long>(); // Device.id -> Position.id
+        private boolean started;
+
+        @Override
+        public synchronized void latestPositionChanged(Position position) {
+            schedule(position);
+        }
+
+        private void schedule(Position position) {
+            long deviceId = position.getDevice().getId();
+            Long offlinePositionId = offlinePositions.get(deviceId);
+            if (offlinePositionId != null) {
+                if (offlinePositionId >= position.getId()) {
+                    return;
+                }
+                offlinePositions.remove(deviceId);
+            }
+
+            long time = position.getTime().getTime() + position.getDevice().getTimeout() * 1000L;
+            Deadline current = deviceDeadlines.get(deviceId);
+            if (current != null && (current.positionId > position.getId() || (current.positionId == position.getId() && current.time == time))) {
+                return;
+            }
+            Deadline deadline = new Deadline(deviceId, position.getId(), time);
+            deviceDeadlines.put(deviceId, deadline);
+            deadlines.add(deadline);
+        }
+
+        @Inject
+        DeviceEventBus deviceEventBus;
+
         @Override
-        @Transactional
         public void doWork() {
-            Date currentTime = new Date();
+            deviceEventBus.publish(detect());
+        }
 
-            for (Device device : entityManager.get().createQuery("SELECT d FROM Device d", Device.class).getResultList()) {
-                // skip devices without any positions
-                if (device.getLatestPosition() == null) {
-                    continue;
+        /**
+         * @return identifiers of created events
+         */
+        @Transactional
+        protected List<Long> detect() {
+            // cache must be accessed without holding lock since it notifies listeners while refreshing
+            if (started) {
+                latestPositionCache.refresh();
+            } else {
+                latestPositionCache.addListener(this);
+                Set<Long> offlinePositionIds = new HashSet<Long>(entityManager.get().createQuery(
+                        "SELECT e.position.id FROM DeviceEvent e, Device d WHERE e.position = d.latestPosition AND e.type = :offline", Long.class)
+                        .setParameter("offline", DeviceEventType.OFFLINE)
+                        .getResultList());
+                List<Position> positions = latestPositionCache.getAll();
+                synchronized (this) {
+                    for (Position position : positions) {
+                        if (offlinePositionIds.contains(position.getId())) {
+                            offlinePositions.put(position.getDevice().getId(), position.getId());
+                        }
+                        schedule(position);
+                    }
                 }
+                started = true;
+            }
 
-                // check that device is offline
-                if (currentTime.getTime() - device.getLatestPosition().getTime().getTime() >= device.getTimeout() * 1000) {
-                    List<DeviceEvent> offlineEvents = entityManager.get().createQuery("SELECT e FROM DeviceEvent e WHERE e.position=:position AND e.type=:offline")
-                            .setParameter("position", device.getLatestPosition())
-                            .setParameter("offline", DeviceEventType.OFFLINE)
-                            .getResultList();
-                    if (offlineEvents.isEmpty()) {
-                        DeviceEvent offlineEvent = new DeviceEvent();
-                        offlineEvent.setTime(currentTime);
-                        offlineEvent.setDevice(device);
-                        offlineEvent.setType(DeviceEventType.OFFLINE);
-                        offlineEvent.setPosition(device.getLatestPosition());
-                        entityManager.get().persist(offlineEvent);
+            Date currentTime = new Date();
+            List<Deadline> passed = new ArrayList<Deadline>();
+            synchronized (this) {
+                while (!deadlines.isEmpty() && deadlines.peek().time <= currentTime.getTime()) {
+                    Deadline deadline = deadlines.poll();
+                    // skip outdated entries
+                    if (deviceDeadlines.get(deadline.deviceId) == deadline) {
+                        deviceDeadlines.remove(deadline.deviceId);
+                        offlinePositions.put(deadline.deviceId, deadline.positionId);
+                        passed.add(deadline);
                     }
                 }
             }
+
+            List<Long> eventIds = new ArrayList<Long>(passed.size());
+            for (Deadline deadline : passed) {
+                // device may be removed meanwhile
+                Position latestPosition = latestPositionCache.get(deadline.deviceId);
+                if (latestPosition == null || latestPosition.getId() != deadline.positionId) {
+                    continue;
+                }
+                DeviceEvent offlineEvent = new DeviceEvent();
+                offlineEvent.setTime(currentTime);
+                offlineEvent.setDevice(entityManager.get().getReference(Device.class, deadline.deviceId));
+                offlineEvent.setType(DeviceEventType.OFFLINE);
+                offlineEvent.setPosition(entityManager.get().getReference(Position.class, deadline.positionId));
+                entityManager.get().persist(offlineEvent);
+                eventIds.add(offlineEvent.getId());
+            }
+            return eventIds;
         }
     }
 
@@ -87,31 +185,58 @@ public class EventServiceImpl extends RemoteServiceServlet implements EventServi
          */
         Long lastScannedPositionId;
 
+        /**
+         * Hash of geo-fences data used to calculate devices state, when geo-fences are changed state is re-calculated
+         */
+        int geoFencesHash;
+
+        @Inject
+        DeviceEventBus deviceEventBus;
+
         @Override
-        @Transactional
         public void doWork() throws Exception {
+            deviceEventBus.publish(detect());
+        }
+
+        /**
+         * @return identifiers of created events
+         */
+        @Transactional
+        protected List<Long> detect() {
             Date currentDate = new Date();
             Set<GeoFence> geoFences = new HashSet<GeoFence>(entityManager.get().createQuery("SELECT g FROM GeoFence g LEFT JOIN FETCH g.devices", GeoFence.class).getResultList());
             if (geoFences.isEmpty()) {
-                return;
+                return Collections.emptyList();
+            }
+
+            int hash = hash(geoFences);
+            if (hash != geoFencesHash) {
+                for (DeviceState state : deviceState.values()) {
+                    state.geoFenceIds = null;
+                }
+                geoFencesHash = hash;
             }
 
             if (lastScannedPositionId == null) {
                 List<Long> latestPositionId = entityManager.get().createQuery("SELECT MAX(d.latestPosition.id) FROM Device d WHERE d.latestPosition IS NOT NULL", Long.class).getResultList();
                 if (latestPositionId.isEmpty()) {
-                    return;
+                    return Collections.emptyList();
                 } else {
                     lastScannedPositionId = latestPositionId.get(0);
                 }
             }
 
             GeoFenceCalculator geoFenceCalculator = new GeoFenceCalculator(geoFences);
+            Map<Long, GeoFence> geoFencesById = new HashMap<Long, GeoFence>(geoFences.size());
+            for (GeoFence geoFence : geoFences) {
+                geoFencesById.put(geoFence.getId(), geoFence);
+            }
 
             List<Position> positions = entityManager.get().createQuery("SELECT p FROM Position p WHERE p.id >= :from ORDER BY device.id, time ASC", Position.class)
                     .setParameter("from", lastScannedPositionId)
                     .getResultList();
 
-            Position prevPosition = null;
+            List<Long> eventIds = new ArrayList<Long>();
             Device device = null;
             DeviceState state = null;
             for (Position position : positions) {
@@ -122,43 +247,92 @@ public class EventServiceImpl extends RemoteServiceServlet implements EventServi
                     if (state == null) {
                         state = new DeviceState();
                         deviceState.put(device.getId(), state);
-                        prevPosition = null;
-                    } else {
-                        prevPosition = entityManager.get().find(Position.class, state.latestPositionId);
+                    }
+                    if (state.geoFenceIds == null) {
+                        seed(state, position, geoFenceCalculator);
                     }
                 }
 
                 // calculate
-                for (GeoFence geoFence : geoFences) {
-                    if (prevPosition != null) {
-                        boolean containsCurrent = geoFenceCalculator.contains(geoFence, position);
-                        boolean containsPrevious = geoFenceCalculator.contains(geoFence, prevPosition);
-
-                        DeviceEventType eventType = null;
-                        if (containsCurrent && !containsPrevious) {
-                            eventType = DeviceEventType.GEO_FENCE_ENTER;
-                        } else if (!containsCurrent && containsPrevious) {
-                            eventType = DeviceEventType.GEO_FENCE_EXIT;
+                Set<Long> geoFenceIds = getIds(geoFenceCalculator.findContaining(position));
+                if (state.geoFenceIds != null) {
+                    for (Long geoFenceId : geoFenceIds) {
+                        if (!state.geoFenceIds.contains(geoFenceId)) {
+                            eventIds.add(addEvent(currentDate, position, geoFencesById.get(geoFenceId), DeviceEventType.GEO_FENCE_ENTER));
                         }
-
-                        if (eventType != null) {
-                            DeviceEvent event = new DeviceEvent();
-                            event.setTime(currentDate);
-                            event.setDevice(device);
-                            event.setType(eventType);
-                            event.setPosition(position);
-                            event.setGeoFence(geoFence);
-                            entityManager.get().persist(event);
+                    }
+                    for (Long geoFenceId : state.geoFenceIds) {
+                        if (!geoFenceIds.contains(geoFenceId) && geoFencesById.containsKey(geoFenceId)) {
+                            eventIds.add(addEvent(currentDate, position, geoFencesById.get(geoFenceId), DeviceEventType.GEO_FENCE_EXIT));
                         }
                     }
                 }
 
-                // update prev position and state
+                // update state
                 state.latestPositionId = position.getId();
-                prevPosition = position;
+                state.geoFenceIds = geoFenceIds;
                 // update latest position id
                 lastScannedPositionId = Math.max(lastScannedPositionId, position.getId());
             }
+            return eventIds;
+        }
+
+        /**
+         * Calculates geo-fences containing the latest already scanned position of device, which is loaded
+         * from DB only once after start or change of geo-fences
+         */
+        private void seed(DeviceState state, Position position, GeoFenceCalculator geoFenceCalculator) {
+            Position prevPosition;
+            if (state.latestPositionId != null) {
+                prevPosition = entityManager.get().find(Position.class, state.latestPositionId);
+            } else {
+                List<Position> prevPositions = entityManager.get().createQuery("SELECT p FROM Position p WHERE p.device = :device AND p.id <= :id ORDER BY p.id DESC", Position.class)
+                        .setParameter("device", position.getDevice())
+                        .setParameter("id", lastScannedPositionId)
+                        .setMaxResults(1)
+                        .getResultList();
+                prevPosition = prevPositions.isEmpty() ? null : prevPositions.get(0);
+            }
+            if (prevPosition != null) {
+                state.geoFenceIds = getIds(geoFenceCalculator.findContaining(prevPosition));
+            }
+        }
+
+        private long addEvent(Date time, Position position, GeoFence geoFence, DeviceEventType type) {
+            DeviceEvent event = new DeviceEvent();
+            event.setTime(time);
+            event.setDevice(position.getDevice());
+            event.setType(type);
+            event.setPosition(position);
+            event.setGeoFence(geoFence);
+            entityManager.get().persist(event);
+            return event.getId();
+        }
+
+        private static Set<Long> getIds(List<GeoFence> geoFences) {
+            if (geoFences.isEmpty()) {
+                return Collections.emptySet();
+            }
+            Set<Long> ids = new HashSet<Long>(geoFences.size());
+            for (GeoFence geoFence : geoFences) {
+                ids.add(geoFence.getId());
+            }
+            return ids;
+        }
+
+        private static int hash(Set<GeoFence> geoFences) {
+            int hash = 0;
+            for (GeoFence geoFence : geoFences) {
+                int h = geoFence.hashCode();
+                h = 31 * h + (geoFence.getPoints() == null ? 0 : geoFence.getPoints().hashCode());
+                h = 31 * h + Float.floatToIntBits(geoFence.getRadius());
+                h = 31 * h + (geoFence.isAllDevices() ? 1 : 0);
+                for (Device device : geoFence.getDevices()) {
+                    h += (int) device.getId();
+                }
+                hash += h;
+            }
+            return hash;
         }
     }
 
@@ -169,6 +343,12 @@ public class EventServiceImpl extends RemoteServiceServlet implements EventServi
     private GeoFenceDetector geoFenceDetector;
     private ScheduledFuture<?> geoFenceDetectorFuture;
     @Inject
+    private OdometerUpdater odometerUpdater;
+    @Inject
+    private RollupUpdater rollupUpdater;
+    @Inject
+    private PositionPurger positionPurger;
+    @Inject
     private Provider<ApplicationSettings> applicationSettings;
 
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
@@ -177,6 +357,9 @@ public class EventServiceImpl extends RemoteServiceServlet implements EventServi
     public void init() throws ServletException {
         super.init();
 
+        scheduler.scheduleWithFixedDelay(odometerUpdater, 0, 1, TimeUnit.MINUTES);
+        scheduler.scheduleWithFixedDelay(rollupUpdater, 0, 1, TimeUnit.MINUTES);
+        scheduler.scheduleWithFixedDelay(positionPurger, 1, 10, TimeUnit.MINUTES);
         if (applicationSettings.get().isEventRecordingEnabled()) {
             startOfflineDetector();
             startGeoFenceDetector();
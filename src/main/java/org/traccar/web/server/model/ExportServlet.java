@@ -17,7 +17,6 @@ package org.traccar.web.server.model;
 
 import com.google.inject.persist.Transactional;
 import org.apache.commons.lang3.StringEscapeUtils;
-import org.traccar.web.client.model.DataService;
 import org.traccar.web.shared.model.Device;
 import org.traccar.web.shared.model.Position;
 import org.traccar.web.shared.model.User;
@@ -50,7 +49,7 @@ public class ExportServlet extends HttpServlet {
     @Inject
     private Provider<EntityManager> entityManager;
     @Inject
-    private DataService dataService;
+    private AccessControlCache accessControlCache;
     @Inject
     protected Logger logger;
 
@@ -93,7 +92,7 @@ public class ExportServlet extends HttpServlet {
 
     void checkAccess(Device device) {
         User user = sessionUser.get();
-        if (!user.getAdmin() && !user.getAllAvailableDevices().contains(device)) {
+        if (!user.getAdmin() && !accessControlCache.hasAccessToDevice(user, device.getId())) {
             throw new SecurityException("User does not have access to device with id=" + device.getId());
         }
     }
@@ -108,11 +107,22 @@ public class ExportServlet extends HttpServlet {
 
         writer.println(line(SEPARATOR, "time", "valid", "latitude", "longitude", "altitude", "speed", "distance", "course", "power", "address", "other"));
 
-        for (Position p : dataService.getPositions(device, from, to, filter)) {
-            writer.println(line(SEPARATOR, p.getTime(), p.getValid(), p.getLatitude(), p.getLongitude(), p.getAltitude(), p.getSpeed(), p.getDistance(), p.getCourse(), p.getPower(), p.getAddress(), p.getOther()));
+        PositionScroll positions = scrollPositions(device, from, to, filter);
+        try {
+            while (positions.next()) {
+                Position p = positions.get();
+                writer.println(line(SEPARATOR, p.getTime(), p.getValid(), p.getLatitude(), p.getLongitude(), p.getAltitude(), p.getSpeed(), p.getDistance(), p.getCourse(), p.getPower(), p.getAddress(), p.getOther()));
+            }
+        } finally {
+            positions.close();
         }
     }
 
+    PositionScroll scrollPositions(Device device, Date from, Date to, boolean filter) {
+        PositionFilter positionFilter = new PositionFilter(sessionUser.get().getUserSettings(), filter);
+        return new PositionScroll(entityManager.get(), positionFilter.createQuery(entityManager.get(), device, from, to), positionFilter);
+    }
+
     private static String line(char SEPARATOR, Object... s) {
         StringBuilder result = new StringBuilder();
         for (int i = 0; i < s.length; i++) {
@@ -168,47 +178,53 @@ public class ExportServlet extends HttpServlet {
         xsw.writeCharacters("Traccar archive");
         xsw.writeEndElement();
         xsw.writeStartElement("trkseg");
-        for (Position p : dataService.getPositions(device, from, to, filter)) {
-            xsw.writeStartElement("trkpt");
-            xsw.writeAttribute("lat", p.getLatitude().toString());
-            xsw.writeAttribute("lon", p.getLongitude().toString());
-            if (p.getAltitude() != null && p.getAltitude() != 0) {
-                xsw.writeStartElement("ele");
-                xsw.writeCharacters(p.getAltitude().toString());
-                xsw.writeEndElement();
-            }
-            xsw.writeStartElement("time");
-            xsw.writeCharacters(dateFormat.format(p.getTime()));
-            xsw.writeEndElement();
-            // traccar extensions
-            xsw.writeStartElement("extensions");
-            if (p.getAddress() != null && !p.getAddress().trim().isEmpty()) {
-                xsw.writeStartElement("traccar:address");
-                xsw.writeCharacters(StringEscapeUtils.escapeXml(p.getAddress()));
-                xsw.writeEndElement();
-            }
-            if (p.getSpeed() != null) {
-                xsw.writeStartElement("traccar:speed");
-                xsw.writeCharacters(p.getSpeed().toString());
-                xsw.writeEndElement();
-            }
-            if (p.getCourse() != null) {
-                xsw.writeStartElement("traccar:course");
-                xsw.writeCharacters(p.getCourse().toString());
+        PositionScroll positions = scrollPositions(device, from, to, filter);
+        try {
+            while (positions.next()) {
+                Position p = positions.get();
+                xsw.writeStartElement("trkpt");
+                xsw.writeAttribute("lat", p.getLatitude().toString());
+                xsw.writeAttribute("lon", p.getLongitude().toString());
+                if (p.getAltitude() != null && p.getAltitude() != 0) {
+                    xsw.writeStartElement("ele");
+                    xsw.writeCharacters(p.getAltitude().toString());
+                    xsw.writeEndElement();
+                }
+                xsw.writeStartElement("time");
+                xsw.writeCharacters(dateFormat.format(p.getTime()));
                 xsw.writeEndElement();
-            }
-            if (p.getPower() != null) {
-                xsw.writeStartElement("traccar:power");
-                xsw.writeCharacters(p.getPower().toString());
+                // traccar extensions
+                xsw.writeStartElement("extensions");
+                if (p.getAddress() != null && !p.getAddress().trim().isEmpty()) {
+                    xsw.writeStartElement("traccar:address");
+                    xsw.writeCharacters(StringEscapeUtils.escapeXml(p.getAddress()));
+                    xsw.writeEndElement();
+                }
+                if (p.getSpeed() != null) {
+                    xsw.writeStartElement("traccar:speed");
+                    xsw.writeCharacters(p.getSpeed().toString());
+                    xsw.writeEndElement();
+                }
+                if (p.getCourse() != null) {
+                    xsw.writeStartElement("traccar:course");
+                    xsw.writeCharacters(p.getCourse().toString());
+                    xsw.writeEndElement();
+                }
+                if (p.getPower() != null) {
+                    xsw.writeStartElement("traccar:power");
+                    xsw.writeCharacters(p.getPower().toString());
+                    xsw.writeEndElement();
+                }
+                if (p.getOther() != null && !p.getOther().trim().isEmpty()) {
+                    xsw.writeStartElement("traccar:other");
+                    xsw.writeCharacters(StringEscapeUtils.escapeXml(p.getOther()));
+                    xsw.writeEndElement();
+                }
                 xsw.writeEndElement();
-            }
-            if (p.getOther() != null && !p.getOther().trim().isEmpty()) {
-                xsw.writeStartElement("traccar:other");
-                xsw.writeCharacters(StringEscapeUtils.escapeXml(p.getOther()));
                 xsw.writeEndElement();
             }
-            xsw.writeEndElement();
-            xsw.writeEndElement();
+        } finally {
+            positions.close();
         }
         xsw.writeEndElement();
         xsw.writeEndElement();
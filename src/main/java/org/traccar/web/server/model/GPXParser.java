@@ -23,9 +23,7 @@ import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 import java.io.InputStream;
-import java.text.DateFormat;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.*;
 
 public class GPXParser {
@@ -34,97 +32,219 @@ public class GPXParser {
         List<Position> positions;
     }
 
+    /**
+     * Receives parsed positions one by one in the order they appear in file
+     */
+    public interface PositionHandler {
+        void handle(Position position);
+    }
+
+    private static final String INFO_START = "<info><protocol>gpx_import</protocol>";
+    private static final String INFO_END = "</info>";
+
     public Result parse(InputStream inputStream, Device device) throws XMLStreamException, ParseException {
-        Result result = new Result();
+        final Result result = new Result();
+        result.positions = new ArrayList<Position>();
 
-        TimeZone tz = TimeZone.getTimeZone("UTC");
-        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-        DateFormat dateFormatWithMS = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        parse(inputStream, device, new PositionHandler() {
+            @Override
+            public void handle(Position position) {
+                result.positions.add(position);
+                if (result.latestPosition == null || result.latestPosition.getTime().compareTo(position.getTime()) < 0) {
+                    result.latestPosition = position;
+                }
+            }
+        });
 
-        dateFormat.setTimeZone(tz);
-        dateFormatWithMS.setTimeZone(tz);
+        return result;
+    }
 
+    /**
+     * Parses file without keeping positions in memory. Each position is passed to handler as soon as
+     * the next one is read, so that the last position can be marked with 'import_end' type.
+     *
+     * @return number of parsed positions
+     */
+    public int parse(InputStream inputStream, Device device, PositionHandler handler) throws XMLStreamException, ParseException {
         XMLStreamReader xsr = XMLInputFactory.newFactory().createXMLStreamReader(inputStream);
 
-        result.positions = new LinkedList<Position>();
+        int count = 0;
+        Position pending = null;
         Position position = null;
-        Stack<String> extensionsElements = new Stack<String>();
+        StringBuilder other = new StringBuilder();
+        StringBuilder extensionName = new StringBuilder();
+        int[] extensionNameLengths = new int[8];
+        int extensionsDepth = 0;
         boolean extensionsStarted = false;
 
-        while (xsr.hasNext()) {
-            xsr.next();
-            if (xsr.getEventType() == XMLStreamReader.START_ELEMENT) {
-                if (xsr.getLocalName().equalsIgnoreCase("trkpt")) {
-                    position = new Position();
-                    position.setLongitude(Double.parseDouble(xsr.getAttributeValue(null, "lon")));
-                    position.setLatitude(Double.parseDouble(xsr.getAttributeValue(null, "lat")));
-                    position.setValid(Boolean.TRUE);
-                    position.setDevice(device);
-                } else if (xsr.getLocalName().equalsIgnoreCase("time")) {
-                    if (position != null) {
-                        String strTime = xsr.getElementText();
-                        if (strTime.length() == 20) {
-                            position.setTime(dateFormat.parse(strTime));
+        try {
+            while (xsr.hasNext()) {
+                xsr.next();
+                if (xsr.getEventType() == XMLStreamReader.START_ELEMENT) {
+                    String localName = xsr.getLocalName();
+                    if (localName.equalsIgnoreCase("trkpt")) {
+                        position = new Position();
+                        position.setLongitude(Double.parseDouble(xsr.getAttributeValue(null, "lon")));
+                        position.setLatitude(Double.parseDouble(xsr.getAttributeValue(null, "lat")));
+                        position.setValid(Boolean.TRUE);
+                        position.setDevice(device);
+                        other.setLength(0);
+                    } else if (localName.equalsIgnoreCase("time")) {
+                        if (position != null) {
+                            position.setTime(new Date(parseTime(xsr.getElementText())));
+                        }
+                    } else if (localName.equalsIgnoreCase("ele") && position != null) {
+                        position.setAltitude(Double.parseDouble(xsr.getElementText()));
+                    } else if (localName.equalsIgnoreCase("address") && position != null) {
+                        position.setAddress(StringEscapeUtils.unescapeXml(xsr.getElementText()));
+                    } else if (localName.equalsIgnoreCase("speed") && position != null) {
+                        position.setSpeed(Double.parseDouble(xsr.getElementText()));
+                    } else if (localName.equalsIgnoreCase("power") && position != null) {
+                        position.setPower(Double.parseDouble(xsr.getElementText()));
+                    } else if (localName.equalsIgnoreCase("course") && position != null) {
+                        position.setCourse(Double.parseDouble(xsr.getElementText()));
+                    } else if (localName.equalsIgnoreCase("other") && position != null) {
+                        other.setLength(0);
+                        other.append(StringEscapeUtils.unescapeXml(xsr.getElementText()));
+                    } else if (localName.equalsIgnoreCase("extensions")) {
+                        extensionsStarted = true;
+                    } else if (position != null && extensionsStarted) {
+                        if (extensionsDepth == extensionNameLengths.length) {
+                            extensionNameLengths = Arrays.copyOf(extensionNameLengths, extensionsDepth * 2);
+                        }
+                        extensionNameLengths[extensionsDepth++] = extensionName.length();
+                        if (extensionName.length() > 0) {
+                            extensionName.append('-');
+                        }
+                        extensionName.append(localName);
+                    }
+                } else if (xsr.getEventType() == XMLStreamReader.END_ELEMENT) {
+                    String localName = xsr.getLocalName();
+                    if (localName.equalsIgnoreCase("trkpt")) {
+                        if (endsWith(other, INFO_END)) {
+                            other.setLength(other.length() - INFO_END.length());
                         } else {
-                            position.setTime(dateFormatWithMS.parse(strTime));
+                            other.insert(0, INFO_START);
                         }
+                        position.setOther(other.toString());
+
+                        if (pending != null) {
+                            handle(handler, pending, count == 1 ? "import_start" : "import");
+                        }
+                        pending = position;
+                        count++;
+                        position = null;
+                    } else if (localName.equalsIgnoreCase("extensions")) {
+                        extensionsStarted = false;
+                    } else if (extensionsStarted && extensionsDepth > 0) {
+                        extensionName.setLength(extensionNameLengths[--extensionsDepth]);
                     }
-                } else if (xsr.getLocalName().equalsIgnoreCase("ele") && position != null) {
-                    position.setAltitude(Double.parseDouble(xsr.getElementText()));
-                } else if (xsr.getLocalName().equalsIgnoreCase("address") && position != null) {
-                    position.setAddress(StringEscapeUtils.unescapeXml(xsr.getElementText()));
-                } else if (xsr.getLocalName().equalsIgnoreCase("speed") && position != null) {
-                    position.setSpeed(Double.parseDouble(xsr.getElementText()));
-                } else if (xsr.getLocalName().equalsIgnoreCase("power") && position != null) {
-                    position.setPower(Double.parseDouble(xsr.getElementText()));
-                } else if (xsr.getLocalName().equalsIgnoreCase("course") && position != null) {
-                    position.setCourse(Double.parseDouble(xsr.getElementText()));
-                } else if (xsr.getLocalName().equalsIgnoreCase("other") && position != null) {
-                    position.setOther(StringEscapeUtils.unescapeXml(xsr.getElementText()));
-                } else if (xsr.getLocalName().equalsIgnoreCase("extensions")) {
-                    extensionsStarted = true;
-                } else if (position != null && extensionsStarted) {
-                    extensionsElements.push(xsr.getLocalName());
+                } else if (extensionsStarted && xsr.getEventType() == XMLStreamReader.CHARACTERS && extensionsDepth > 0 && !xsr.isWhiteSpace()) {
+                    other.append('<').append(extensionName).append('>')
+                            .append(xsr.getTextCharacters(), xsr.getTextStart(), xsr.getTextLength())
+                            .append("</").append(extensionName).append('>');
                 }
-            } else if (xsr.getEventType() == XMLStreamReader.END_ELEMENT) {
-                if (xsr.getLocalName().equalsIgnoreCase("trkpt")) {
-                    if (position.getOther() == null) {
-                        position.setOther("<info><protocol>gpx_import</protocol></info>");
-                    }
+            }
+        } finally {
+            xsr.close();
+        }
 
-                    if (position.getOther().endsWith("</info>")) {
-                        position.setOther(position.getOther().substring(0, position.getOther().length() - 7));
-                    } else {
-                        position.setOther("<info><protocol>gpx_import</protocol>" + position.getOther());
-                    }
-                    position.setOther(position.getOther() + "<type>" +
-                            (result.positions.isEmpty() ? "import_start" : "import") + "</type></info>");
+        if (pending != null) {
+            handle(handler, pending, count == 1 ? "import_start" : "import_end");
+        }
 
-                    result.positions.add(position);
-                    if (result.latestPosition == null || result.latestPosition.getTime().compareTo(position.getTime()) < 0) {
-                        result.latestPosition = position;
-                    }
-                    position = null;
-                } else if (xsr.getLocalName().equalsIgnoreCase("extensions")) {
-                    extensionsStarted = false;
-                } else if (extensionsStarted) {
-                    extensionsElements.pop();
-                }
-            } else if (extensionsStarted && xsr.getEventType() == XMLStreamReader.CHARACTERS && !xsr.getText().trim().isEmpty() && !extensionsElements.empty()) {
-                String name = "";
-                for (int i = 0; i < extensionsElements.size(); i++) {
-                    name += (name.length() > 0 ? "-" : "") + extensionsElements.get(i);
-                }
-                position.setOther((position.getOther() == null ? "" : position.getOther()) +
-                        "<" + name + ">" + xsr.getText() + "</" + name + ">");
+        return count;
+    }
+
+    private static void handle(PositionHandler handler, Position position, String type) {
+        position.setOther(position.getOther() + "<type>" + type + "</type>" + INFO_END);
+        handler.handle(position);
+    }
+
+    private static boolean endsWith(StringBuilder sb, String suffix) {
+        int offset = sb.length() - suffix.length();
+        if (offset < 0) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length(); i++) {
+            if (sb.charAt(offset + i) != suffix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses ISO-8601 date and time in format <code>yyyy-MM-dd'T'HH:mm:ss[.S*](Z|+hh:mm|-hh:mm)</code>
+     *
+     * @return number of milliseconds since epoch
+     */
+    static long parseTime(String s) throws ParseException {
+        int length = s.length();
+        if (length < 20 || s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(10) != 'T' || s.charAt(13) != ':' || s.charAt(16) != ':') {
+            throw new ParseException("Unparseable date: \"" + s + "\"", 0);
+        }
+        int year = digits(s, 0, 4);
+        int month = digits(s, 5, 2);
+        int day = digits(s, 8, 2);
+        int hour = digits(s, 11, 2);
+        int minute = digits(s, 14, 2);
+        int second = digits(s, 17, 2);
+
+        int i = 19;
+        int millis = 0;
+        if (s.charAt(i) == '.') {
+            i++;
+            int multiplier = 100;
+            int start = i;
+            while (i < length && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+                millis += (s.charAt(i) - '0') * multiplier;
+                multiplier /= 10;
+                i++;
+            }
+            if (i == start) {
+                throw new ParseException("Unparseable date: \"" + s + "\"", i);
             }
         }
 
-        if (result.positions.size() > 1) {
-            Position last = ((LinkedList<Position>) result.positions).getLast();
-            last.setOther(last.getOther().replaceFirst("<type>import</type>", "<type>import_end</type>"));
+        int offset;
+        if (i == length - 1 && s.charAt(i) == 'Z') {
+            offset = 0;
+        } else if (i == length - 6 && (s.charAt(i) == '+' || s.charAt(i) == '-') && s.charAt(i + 3) == ':') {
+            offset = (digits(s, i + 1, 2) * 60 + digits(s, i + 4, 2)) * (s.charAt(i) == '-' ? -1 : 1);
+        } else {
+            throw new ParseException("Unparseable date: \"" + s + "\"", i);
         }
 
+        if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 60) {
+            throw new ParseException("Unparseable date: \"" + s + "\"", 0);
+        }
+
+        long days = daysFromCivil(year, month, day);
+        return ((days * 24 + hour) * 60 + minute - offset) * 60000L + second * 1000L + millis;
+    }
+
+    private static int digits(String s, int start, int count) throws ParseException {
+        int result = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new ParseException("Unparseable date: \"" + s + "\"", i);
+            }
+            result = result * 10 + (c - '0');
+        }
         return result;
     }
+
+    /**
+     * @return number of days since 1970-01-01 in proleptic Gregorian calendar
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        int era = (year >= 0 ? year : year - 399) / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
 }
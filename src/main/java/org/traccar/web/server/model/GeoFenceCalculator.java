@@ -20,14 +20,27 @@ import org.traccar.web.shared.model.Position;
 
 import java.awt.*;
 import java.awt.geom.Path2D;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Checks whether positions are inside of geo-fences.
+ *
+ * <p>Geo-fences are indexed by a uniform grid of {@link #CELL_SIZE} degrees built from their bounding
+ * boxes (expanded by radius for circles and lines), so {@link #findContaining(Position)} runs exact
+ * geometry checks only for geo-fences located near the position. Geo-fences covering too many cells
+ * are not put into the grid and are always checked.</p>
+ */
 public class GeoFenceCalculator {
     private static final double radKoef = Math.PI / 180;
     private static final double earthRadius = 6371.01; // Radius of the earth in km
+    private static final double kmPerDegree = earthRadius * radKoef;
+
+    static final double CELL_SIZE = 0.05;
+    static final int MAX_CELLS = 256;
 
     static double getDistance(double lonX, double latX, double lonY, double latY) {
         double dLat = (latX - latY) * radKoef;
@@ -52,6 +65,8 @@ public class GeoFenceCalculator {
     }
 
     private final Map<GeoFence, GeoFenceData> geoFences;
+    private final Map<Long, List<GeoFence>> grid = new HashMap<Long, List<GeoFence>>();
+    private final List<GeoFence> unindexed = new ArrayList<GeoFence>();
 
     public GeoFenceCalculator(Collection<GeoFence> geoFences) {
         this.geoFences = new HashMap<GeoFence, GeoFenceData>(geoFences.size());
@@ -73,7 +88,92 @@ public class GeoFenceCalculator {
                     break;
             }
             this.geoFences.put(geoFence, new GeoFenceData(points, shape));
+            index(geoFence, points);
+        }
+    }
+
+    private void index(GeoFence geoFence, List<GeoFence.LonLat> points) {
+        if (points.isEmpty()) {
+            return;
+        }
+
+        double minLon = Double.MAX_VALUE, minLat = Double.MAX_VALUE;
+        double maxLon = -Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+        for (GeoFence.LonLat point : points) {
+            minLon = Math.min(minLon, point.lon);
+            minLat = Math.min(minLat, point.lat);
+            maxLon = Math.max(maxLon, point.lon);
+            maxLat = Math.max(maxLat, point.lat);
+        }
+
+        // expand bounding box by the distance used in 'contains' check, with 10% reserve
+        double distance;
+        switch (geoFence.getType()) {
+            case CIRCLE:
+                distance = geoFence.getRadius() / 1000;
+                break;
+            case LINE:
+                distance = geoFence.getRadius() / 2000;
+                break;
+            default:
+                distance = 0;
+        }
+        if (distance > 0) {
+            double latDelta = distance * 1.1 / kmPerDegree;
+            double cos = Math.cos(Math.max(Math.abs(minLat), Math.abs(maxLat)) * radKoef);
+            double lonDelta = cos < 0.01 ? 360 : latDelta / cos;
+            minLon -= lonDelta;
+            maxLon += lonDelta;
+            minLat -= latDelta;
+            maxLat += latDelta;
+        }
+
+        int minX = cell(minLon), maxX = cell(maxLon);
+        int minY = cell(minLat), maxY = cell(maxLat);
+        if ((long) (maxX - minX + 1) * (maxY - minY + 1) > MAX_CELLS) {
+            unindexed.add(geoFence);
+            return;
+        }
+        for (int x = minX; x <= maxX; x++) {
+            for (int y = minY; y <= maxY; y++) {
+                Long key = key(x, y);
+                List<GeoFence> cellGeoFences = grid.get(key);
+                if (cellGeoFences == null) {
+                    cellGeoFences = new ArrayList<GeoFence>(2);
+                    grid.put(key, cellGeoFences);
+                }
+                cellGeoFences.add(geoFence);
+            }
+        }
+    }
+
+    private static int cell(double degrees) {
+        return (int) Math.floor(degrees / CELL_SIZE);
+    }
+
+    private static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return geo-fences, which contain specified position
+     */
+    public List<GeoFence> findContaining(Position position) {
+        List<GeoFence> result = new ArrayList<GeoFence>();
+        List<GeoFence> candidates = grid.get(key(cell(position.getLongitude()), cell(position.getLatitude())));
+        if (candidates != null) {
+            for (GeoFence geoFence : candidates) {
+                if (contains(geoFence, position)) {
+                    result.add(geoFence);
+                }
+            }
+        }
+        for (GeoFence geoFence : unindexed) {
+            if (contains(geoFence, position)) {
+                result.add(geoFence);
+            }
         }
+        return result;
     }
 
     public boolean contains(GeoFence geoFence, Position position) {
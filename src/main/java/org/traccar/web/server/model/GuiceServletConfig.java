@@ -77,6 +77,7 @@ public class GuiceServletConfig extends GuiceServletContextListener {
                 bindInterceptor(Matchers.any(), Matchers.annotatedWith(RequireWrite.class), userCheck);
 
                 bind(User.class).toProvider(CurrentUserProvider.class);
+                bind(UserRoles.class).toProvider(UserRolesProvider.class);
                 bind(ApplicationSettings.class).toProvider(ApplicationSettingsProvider.class);
                 bind(DataService.class).to(DataServiceImpl.class);
                 bind(EventService.class).to(EventServiceImpl.class);
@@ -17,8 +17,10 @@ package org.traccar.web.server.model;
 
 import com.google.inject.persist.Transactional;
 import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
 import org.traccar.web.shared.model.ApplicationSettings;
 import org.traccar.web.shared.model.Device;
 import org.traccar.web.shared.model.Position;
@@ -32,13 +34,10 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.stream.XMLStreamException;
-import java.io.IOException;
-import java.io.InputStream;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.*;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -51,8 +50,18 @@ public class ImportServlet extends HttpServlet {
     @Inject
     private Provider<EntityManager> entityManager;
     @Inject
+    private AccessControlCache accessControlCache;
+    @Inject
     protected Logger logger;
 
+    private final ExecutorService parsers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+    @Override
+    public void destroy() {
+        parsers.shutdownNow();
+        super.destroy();
+    }
+
     @Transactional(rollbackOn = { IOException.class, RuntimeException.class })
     @RequireUser
     @Override
@@ -67,17 +76,26 @@ public class ImportServlet extends HttpServlet {
         ServletFileUpload servletFileUpload = new ServletFileUpload();
 
         if (importType.equalsIgnoreCase("gpx")) {
+            List<ParsedFile> files = new ArrayList<ParsedFile>();
             try {
                 FileItemIterator fileItemIterator = servletFileUpload.getItemIterator(req);
                 while (fileItemIterator.hasNext()) {
-                    gpx(device, fileItemIterator.next().openStream(), resp);
+                    FileItemStream item = fileItemIterator.next();
+                    if (!item.isFormField()) {
+                        parse(device, item, files);
+                    }
                 }
+                gpx(device, files, resp);
             } catch (FileUploadException fue) {
                 logger.log(Level.WARNING, fue.getLocalizedMessage(), fue);
                 throw new IOException(fue);
             } catch (IOException ioex) {
                 logger.log(Level.WARNING, ioex.getLocalizedMessage(), ioex);
                 throw ioex;
+            } finally {
+                for (ParsedFile file : files) {
+                    file.discard();
+                }
             }
         } else {
             throw new ServletException("Unsupported import type: " + importType);
@@ -86,7 +104,7 @@ public class ImportServlet extends HttpServlet {
 
     void checkAccess(Device device) {
         User user = sessionUser.get();
-        if (!user.getAdmin() && !user.getAllAvailableDevices().contains(device)) {
+        if (!user.getAdmin() && !accessControlCache.hasAccessToDevice(user, device.getId())) {
             throw new SecurityException("User does not have access to device with id=" + device.getId());
         }
         if (!user.getAdmin() && !user.getManager() && applicationSettings.get().isDisallowDeviceManagementByUsers()) {
@@ -94,58 +112,148 @@ public class ImportServlet extends HttpServlet {
         }
     }
 
-    void gpx(Device device, InputStream inputStream, HttpServletResponse response) throws IOException {
-        TimeZone tz = TimeZone.getTimeZone("UTC");
-        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-        DateFormat dateFormatWithMS = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    /**
+     * Spools uploaded file to disk and starts parsing it in background. File is added to the list before
+     * spooling, so it is discarded by the caller even if upload fails in the middle.
+     */
+    void parse(final Device device, FileItemStream item, List<ParsedFile> files) throws IOException {
+        final ParsedFile file = new ParsedFile(item.getName(), File.createTempFile("import", ".gpx"));
+        files.add(file);
+        OutputStream out = new FileOutputStream(file.spool);
+        try {
+            Streams.copy(item.openStream(), out, false);
+        } finally {
+            out.close();
+        }
+        file.future = parsers.submit(new Runnable() {
+            @Override
+            public void run() {
+                file.parse(device);
+            }
+        });
+    }
+
+    /**
+     * Writes parsed positions file by file in the order of upload, so results are the same as if files were
+     * imported one after another
+     */
+    void gpx(Device device, List<ParsedFile> files, HttpServletResponse response) throws IOException {
+        long started = System.currentTimeMillis();
 
-        dateFormat.setTimeZone(tz);
-        dateFormatWithMS.setTimeZone(tz);
+        PrintWriter writer = response.getWriter();
+        writer.println("<pre>");
 
+        for (ParsedFile file : files) {
+            if (files.size() > 1) {
+                writer.println("File: " + file.name);
+            }
 
-        try {
-            GPXParser.Result parsed = new GPXParser().parse(inputStream, device);
-
-            response.getWriter().println("<pre>");
-
-            int imported = 0;
-
-            for (Position position : parsed.positions) {
-                boolean exist = false;
-                for (Position existing : entityManager.get().createQuery("SELECT p FROM Position p WHERE p.device=:device AND p.time=:time", Position.class)
-                        .setParameter("device", device)
-                        .setParameter("time", position.getTime()).getResultList()) {
-                    if (equals(existing.getLongitude(), position.getLongitude(), 0.0000000001d) &&
-                            equals(existing.getLatitude(), position.getLatitude(), 0.0000000001d) &&
-                            equals(existing.getAltitude(), position.getAltitude(), 0.00001d) &&
-                            existing.getOther().equals(position.getOther())) {
-                        exist = true;
-                        break;
+            PositionImporter importer = new PositionImporter(entityManager.get(), device);
+            List<Position> chunk;
+            while ((chunk = file.take()) != null) {
+                for (Position position : chunk) {
+                    if (importer.add(position)) {
+                        writer.println("Processed: " + importer.getProcessed());
+                        writer.flush();
                     }
                 }
+            }
+            importer.finish();
+
+            writer.println("Already exist: " + importer.getDuplicates());
+            writer.println("Imported: " + importer.getImported());
+        }
+        writer.println("Time: " + (System.currentTimeMillis() - started) + " ms");
+
+        writer.println("</pre>");
+    }
+
+    /**
+     * Uploaded file, which is parsed in background. Parsed positions are passed to the writer in chunks
+     * through bounded queue, so parsing does not go too far ahead of writing.
+     */
+    static class ParsedFile implements GPXParser.PositionHandler {
+        static final int CHUNK_SIZE = PositionImporter.BATCH_SIZE;
+        static final int QUEUE_SIZE = 4;
 
-                if (!exist) {
-                    entityManager.get().persist(position);
-                    imported++;
+        private static final Object END = new Object();
+
+        final String name;
+        final File spool;
+        final BlockingQueue<Object> chunks = new ArrayBlockingQueue<Object>(QUEUE_SIZE);
+        Future<?> future;
+
+        private List<Position> chunk = new ArrayList<Position>(CHUNK_SIZE);
+
+        ParsedFile(String name, File spool) {
+            this.name = name;
+            this.spool = spool;
+        }
+
+        void parse(Device device) {
+            Object last = END;
+            try {
+                InputStream inputStream = new BufferedInputStream(new FileInputStream(spool));
+                try {
+                    new GPXParser().parse(inputStream, device, this);
+                } finally {
+                    inputStream.close();
+                }
+                if (!chunk.isEmpty()) {
+                    put(chunk);
                 }
+            } catch (CancellationException ce) {
+                return;
+            } catch (Exception ex) {
+                last = ex;
             }
+            put(last);
+        }
 
-            if (parsed.latestPosition != null && device.getLatestPosition() == null || device.getLatestPosition().getTime().compareTo(parsed.latestPosition.getTime()) < 0) {
-                device.setLatestPosition(parsed.latestPosition);
+        @Override
+        public void handle(Position position) {
+            chunk.add(position);
+            if (chunk.size() >= CHUNK_SIZE) {
+                put(chunk);
+                chunk = new ArrayList<Position>(CHUNK_SIZE);
             }
+        }
 
-            response.getWriter().println("Already exist: " + (parsed.positions.size() - imported));
-            response.getWriter().println("Imported: " + imported);
+        private void put(Object item) {
+            try {
+                chunks.put(item);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException();
+            }
+        }
 
-            response.getWriter().println("</pre>");
-        } catch (XMLStreamException xse) {
-            throw new IOException(xse);
-        } catch (ParseException pe) {
-            throw new IOException(pe);
+        /**
+         * @return next chunk of parsed positions or <code>null</code> if the whole file was read
+         */
+        @SuppressWarnings("unchecked")
+        List<Position> take() throws IOException {
+            Object item;
+            try {
+                item = chunks.take();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (item == END) {
+                return null;
+            }
+            if (item instanceof Exception) {
+                throw new IOException((Exception) item);
+            }
+            return (List<Position>) item;
         }
-    }
 
-    private static boolean equals(Double d1, Double d2, double delta) {
-        return d1 != null && d2 != null && Math.abs(d1 - d2) < delta;
+        void discard() {
+            if (future != null) {
+                future.cancel(true);
+            }
+            spool.delete();
+        }
     }
 }
@@ -0,0 +1,383 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.server.model;
+
+import org.traccar.web.shared.model.Device;
+import org.traccar.web.shared.model.Position;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.persistence.EntityManager;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps snapshot of the latest position of each device in memory.
+ *
+ * <p>Snapshot is refreshed incrementally by reading only positions with identifier greater than the
+ * last seen one (positions identifiers are assumed to be increasing). Position replaces the cached one
+ * only if it is not older, so late positions do not move device back. Full reload is performed
+ * periodically to pick up changes made outside of this application instance.</p>
+ *
+ * <p>Besides latest positions the cache keeps the latest non-idle position of each device (the latest
+ * one with positive speed or the earliest one if device never moved). It is loaded on first request by
+ * a single set-based query and then maintained by the same incremental refresh. Full reload skips
+ * positions stored since the last refresh, so non-idle positions are loaded again after it.</p>
+ *
+ * <p>Listeners are notified about each change of cached position from the thread performing refresh.</p>
+ *
+ * <p>Cached objects are never modified, readers always get copies. Positions fetched by one refresh are
+ * published to readers at once, so a reader never sees a position without positions with lower
+ * identifiers read before it.</p>
+ */
+@Singleton
+public class LatestPositionCache {
+    public interface Listener {
+        /**
+         * @param position new cached position, must not be modified
+         */
+        void latestPositionChanged(Position position);
+    }
+
+    static final long REFRESH_INTERVAL = 1000;
+    static final long RELOAD_INTERVAL = 10 * 60 * 1000;
+    static final int TAIL_CHUNK_SIZE = 1000;
+
+    @Inject
+    private Provider<EntityManager> entityManager;
+
+    static final int LOAD_CHUNK_SIZE = 500;
+
+    private final ConcurrentMap<Long, Position> positions = new ConcurrentHashMap<Long, Position>(); // Device.id -> Position
+    private final ConcurrentMap<Long, Position> nonIdlePositions = new ConcurrentHashMap<Long, Position>(); // Device.id -> Position
+    private boolean nonIdlePositionsLoaded;
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private final ReadWriteLock publishLock = new ReentrantReadWriteLock();
+    private final Object refreshLock = new Object();
+    private long lastPositionId = -1;
+    private long lastRefresh;
+    private long lastReload;
+
+    /**
+     * @return copies of latest positions of specified devices, devices without positions are skipped
+     */
+    public List<Position> get(Collection<Long> deviceIds) {
+        refresh();
+        return copy(positions, deviceIds);
+    }
+
+    /**
+     * @return copies of latest non-idle positions of specified devices, devices without positions are skipped
+     */
+    public List<Position> getNonIdle(Collection<Long> deviceIds) {
+        synchronized (refreshLock) {
+            refresh();
+            if (!nonIdlePositionsLoaded) {
+                loadNonIdle(entityManager.get());
+                nonIdlePositionsLoaded = true;
+            }
+        }
+        return copy(nonIdlePositions, deviceIds);
+    }
+
+    private List<Position> copy(Map<Long, Position> positions, Collection<Long> deviceIds) {
+        List<Position> result = new ArrayList<Position>(deviceIds.size());
+        publishLock.readLock().lock();
+        try {
+            for (Long deviceId : deviceIds) {
+                Position position = positions.get(deviceId);
+                if (position != null) {
+                    result.add(new Position(position));
+                }
+            }
+        } finally {
+            publishLock.readLock().unlock();
+        }
+        return result;
+    }
+
+    /**
+     * @return copies of all cached positions
+     */
+    public List<Position> getAll() {
+        refresh();
+        publishLock.readLock().lock();
+        try {
+            List<Position> result = new ArrayList<Position>(positions.size());
+            for (Position position : positions.values()) {
+                result.add(new Position(position));
+            }
+            return result;
+        } finally {
+            publishLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return copy of latest position of device or <code>null</code> if device has no positions
+     */
+    public Position get(long deviceId) {
+        refresh();
+        Position position = positions.get(deviceId);
+        return position == null ? null : new Position(position);
+    }
+
+    /**
+     * Updates device data stored along with cached position
+     */
+    public void deviceChanged(Device device) {
+        Position position = positions.get(device.getId());
+        if (position != null) {
+            Position snapshot = new Position(position);
+            snapshot.setDevice(new Device(device));
+            if (positions.replace(device.getId(), position, snapshot)) {
+                fireChanged(snapshot);
+            }
+        }
+        position = nonIdlePositions.get(device.getId());
+        if (position != null) {
+            Position snapshot = new Position(position);
+            snapshot.setDevice(new Device(device));
+            nonIdlePositions.replace(device.getId(), position, snapshot);
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private void fireChanged(Position position) {
+        for (Listener listener : listeners) {
+            listener.latestPositionChanged(position);
+        }
+    }
+
+    public void deviceRemoved(long deviceId) {
+        positions.remove(deviceId);
+        nonIdlePositions.remove(deviceId);
+    }
+
+    public void refresh() {
+        synchronized (refreshLock) {
+            long now = System.currentTimeMillis();
+            if (now - lastRefresh < REFRESH_INTERVAL) {
+                return;
+            }
+            if (lastPositionId < 0 || now - lastReload >= RELOAD_INTERVAL) {
+                reload(entityManager.get());
+                lastReload = now;
+            } else {
+                tail(entityManager.get());
+            }
+            lastRefresh = now;
+        }
+    }
+
+    private void reload(EntityManager entityManager) {
+        Long maxId = entityManager.createQuery("SELECT MAX(p.id) FROM Position p", Long.class).getSingleResult();
+
+        List<Device> devices = entityManager.createQuery("SELECT d FROM Device d INNER JOIN FETCH d.latestPosition", Device.class).getResultList();
+
+        publishLock.writeLock().lock();
+        try {
+            positions.clear();
+            for (Device device : devices) {
+                put(device.getLatestPosition(), device);
+            }
+        } finally {
+            publishLock.writeLock().unlock();
+        }
+
+        nonIdlePositionsLoaded = false;
+        lastPositionId = maxId == null ? 0 : maxId;
+    }
+
+    private void tail(EntityManager entityManager) {
+        List<Object[]> rows;
+        do {
+            rows = entityManager.createQuery(
+                    "SELECT p.id, p.device.id, p.time, p.speed FROM Position p WHERE p.id > :id ORDER BY p.id", Object[].class)
+                    .setParameter("id", lastPositionId)
+                    .setMaxResults(TAIL_CHUNK_SIZE)
+                    .getResultList();
+            if (rows.isEmpty()) {
+                return;
+            }
+
+            // find the newest position and the newest moving position of each device in chunk
+            Map<Long, Object[]> newest = new HashMap<Long, Object[]>();
+            Map<Long, Object[]> newestMoving = new HashMap<Long, Object[]>();
+            Map<Long, Object[]> earliest = new HashMap<Long, Object[]>();
+            for (Object[] row : rows) {
+                Long deviceId = (Long) row[1];
+                Date time = (Date) row[2];
+                Double speed = (Double) row[3];
+                if (time == null) {
+                    continue;
+                }
+                if (isNewer(time, newest.get(deviceId))) {
+                    newest.put(deviceId, row);
+                }
+                if (speed != null && speed > 0 && isNewer(time, newestMoving.get(deviceId))) {
+                    newestMoving.put(deviceId, row);
+                }
+                Object[] prev = earliest.get(deviceId);
+                if (prev == null || time.before((Date) prev[2])) {
+                    earliest.put(deviceId, row);
+                }
+            }
+
+            Set<Long> positionIds = new HashSet<Long>();
+            List<Long> latestIds = new ArrayList<Long>(newest.size());
+            for (Map.Entry<Long, Object[]> entry : newest.entrySet()) {
+                Position cached = positions.get(entry.getKey());
+                if (cached == null || !((Date) entry.getValue()[2]).before(cached.getTime())) {
+                    latestIds.add((Long) entry.getValue()[0]);
+                }
+            }
+            positionIds.addAll(latestIds);
+            List<Long> nonIdleIds = new ArrayList<Long>();
+            if (nonIdlePositionsLoaded) {
+                for (Map.Entry<Long, Object[]> entry : earliest.entrySet()) {
+                    Position cached = nonIdlePositions.get(entry.getKey());
+                    Object[] moving = newestMoving.get(entry.getKey());
+                    if (moving != null) {
+                        if (cached == null || !isMoving(cached) || !((Date) moving[2]).before(cached.getTime())) {
+                            nonIdleIds.add((Long) moving[0]);
+                        }
+                    } else if (cached == null) {
+                        nonIdleIds.add((Long) entry.getValue()[0]);
+                    }
+                }
+            }
+            positionIds.addAll(nonIdleIds);
+
+            if (!positionIds.isEmpty()) {
+                Map<Long, Position> loaded = new HashMap<Long, Position>(positionIds.size());
+                for (Position position : entityManager.createQuery("SELECT p FROM Position p WHERE p.id IN (:ids) ORDER BY p.id", Position.class)
+                        .setParameter("ids", positionIds)
+                        .getResultList()) {
+                    loaded.put(position.getId(), position);
+                }
+                publishLock.writeLock().lock();
+                try {
+                    for (Long positionId : latestIds) {
+                        Position position = loaded.get(positionId);
+                        put(position, position.getDevice());
+                    }
+                    for (Long positionId : nonIdleIds) {
+                        Position position = loaded.get(positionId);
+                        putNonIdle(position, position.getDevice());
+                    }
+                } finally {
+                    publishLock.writeLock().unlock();
+                }
+            }
+
+            lastPositionId = (Long) rows.get(rows.size() - 1)[0];
+        } while (rows.size() == TAIL_CHUNK_SIZE);
+    }
+
+    private static boolean isNewer(Date time, Object[] row) {
+        return row == null || !time.before((Date) row[2]);
+    }
+
+    private static boolean isMoving(Position position) {
+        return position.getSpeed() != null && position.getSpeed() > 0;
+    }
+
+    /**
+     * Finds time of the latest moving position of each device (or the earliest position if device never
+     * moved) with one query and then loads these positions in chunks. Loaded positions replace all cached
+     * ones at once.
+     */
+    private void loadNonIdle(EntityManager entityManager) {
+        List<Object[]> rows = entityManager.createQuery(
+                "SELECT d.id," +
+                " (SELECT MAX(p.time) FROM Position p WHERE p.device = d AND p.speed > 0)," +
+                " (SELECT MIN(p.time) FROM Position p WHERE p.device = d)" +
+                " FROM Device d", Object[].class)
+                .getResultList();
+
+        Map<Long, Date> times = new HashMap<Long, Date>(rows.size());
+        for (Object[] row : rows) {
+            Date time = row[1] != null ? (Date) row[1] : (Date) row[2];
+            if (time != null) {
+                times.put((Long) row[0], time);
+            }
+        }
+
+        Map<Long, Position> result = new HashMap<Long, Position>(times.size());
+        List<Long> deviceIds = new ArrayList<Long>(times.keySet());
+        for (int i = 0; i < deviceIds.size(); i += LOAD_CHUNK_SIZE) {
+            List<Long> chunk = deviceIds.subList(i, Math.min(deviceIds.size(), i + LOAD_CHUNK_SIZE));
+            Set<Date> chunkTimes = new HashSet<Date>(chunk.size());
+            for (Long deviceId : chunk) {
+                chunkTimes.add(times.get(deviceId));
+            }
+            List<Position> loaded = entityManager.createQuery(
+                    "SELECT p FROM Position p WHERE p.device.id IN (:devices) AND p.time IN (:times) ORDER BY p.id", Position.class)
+                    .setParameter("devices", chunk)
+                    .setParameter("times", chunkTimes)
+                    .getResultList();
+            for (Position position : loaded) {
+                // query may return positions of other devices with the same time, and several positions with the same time
+                Date time = times.get(position.getDevice().getId());
+                if (time != null && time.getTime() == position.getTime().getTime()) {
+                    Position found = result.get(position.getDevice().getId());
+                    if (found == null || isMoving(position) || !isMoving(found)) {
+                        result.put(position.getDevice().getId(), snapshot(position, position.getDevice()));
+                    }
+                }
+            }
+        }
+
+        publishLock.writeLock().lock();
+        try {
+            nonIdlePositions.clear();
+            nonIdlePositions.putAll(result);
+        } finally {
+            publishLock.writeLock().unlock();
+        }
+    }
+
+    private static Position snapshot(Position position, Device device) {
+        Position snapshot = new Position(position);
+        snapshot.setDevice(new Device(device));
+        return snapshot;
+    }
+
+    private void putNonIdle(Position position, Device device) {
+        nonIdlePositions.put(device.getId(), snapshot(position, device));
+    }
+
+    private void put(Position position, Device device) {
+        Position snapshot = snapshot(position, device);
+        positions.put(device.getId(), snapshot);
+        fireChanged(snapshot);
+    }
+}
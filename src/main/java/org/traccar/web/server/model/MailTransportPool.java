@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.server.model;
+
+import org.traccar.web.shared.model.NotificationSettings;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import java.util.*;
+
+/**
+ * Keeps connected SMTP transports for reuse, separately for each distinct server settings
+ */
+public class MailTransportPool {
+    static final int MAX_IDLE = 4;
+    static final long IDLE_TIMEOUT = 60 * 1000;
+
+    private static class IdleTransport {
+        final Transport transport;
+        final long time;
+
+        IdleTransport(Transport transport, long time) {
+            this.transport = transport;
+            this.time = time;
+        }
+    }
+
+    private static class Pool {
+        final Session session;
+        final Deque<IdleTransport> idle = new ArrayDeque<IdleTransport>();
+
+        Pool(Session session) {
+            this.session = session;
+        }
+    }
+
+    private final Map<String, Pool> pools = new HashMap<String, Pool>();
+
+    /**
+     * @return session for creating messages, which are sent with the specified settings
+     */
+    public Session getSession(NotificationSettings settings) {
+        return getPool(settings).session;
+    }
+
+    public void send(NotificationSettings settings, Message message) throws MessagingException {
+        Pool pool = getPool(settings);
+        Transport transport = borrow(pool);
+        boolean sent = false;
+        try {
+            transport.sendMessage(message, message.getAllRecipients());
+            sent = true;
+        } finally {
+            if (sent) {
+                release(pool, transport);
+            } else {
+                close(transport);
+            }
+        }
+    }
+
+    /**
+     * Closes transports, which were not used for too long
+     */
+    public void closeIdle() {
+        long time = System.currentTimeMillis() - IDLE_TIMEOUT;
+        for (Pool pool : getPools()) {
+            List<IdleTransport> expired = new ArrayList<IdleTransport>();
+            synchronized (pool) {
+                for (Iterator<IdleTransport> it = pool.idle.iterator(); it.hasNext(); ) {
+                    IdleTransport idle = it.next();
+                    if (idle.time < time) {
+                        expired.add(idle);
+                        it.remove();
+                    }
+                }
+            }
+            for (IdleTransport idle : expired) {
+                close(idle.transport);
+            }
+        }
+    }
+
+    public void close() {
+        for (Pool pool : getPools()) {
+            List<IdleTransport> idle;
+            synchronized (pool) {
+                idle = new ArrayList<IdleTransport>(pool.idle);
+                pool.idle.clear();
+            }
+            for (IdleTransport transport : idle) {
+                close(transport.transport);
+            }
+        }
+    }
+
+    private synchronized List<Pool> getPools() {
+        return new ArrayList<Pool>(pools.values());
+    }
+
+    private synchronized Pool getPool(NotificationSettings settings) {
+        String key = settings.getServer() + '|' + settings.getPort() + '|' + settings.getSecureConnectionType() + '|' +
+                settings.isUseAuthorization() + '|' + settings.getUsername() + '|' + settings.getPassword();
+        Pool pool = pools.get(key);
+        if (pool == null) {
+            pool = new Pool(NotificationServiceImpl.getSession(settings));
+            pools.put(key, pool);
+        }
+        return pool;
+    }
+
+    private Transport borrow(Pool pool) throws MessagingException {
+        long time = System.currentTimeMillis() - IDLE_TIMEOUT;
+        while (true) {
+            IdleTransport idle;
+            synchronized (pool) {
+                idle = pool.idle.pollFirst();
+            }
+            if (idle == null) {
+                break;
+            }
+            // server may close connection, which was idle for some time
+            if (idle.time >= time && idle.transport.isConnected()) {
+                return idle.transport;
+            }
+            close(idle.transport);
+        }
+
+        Transport transport = pool.session.getTransport("smtp");
+        transport.connect();
+        return transport;
+    }
+
+    private void release(Pool pool, Transport transport) {
+        synchronized (pool) {
+            if (pool.idle.size() < MAX_IDLE) {
+                pool.idle.addFirst(new IdleTransport(transport, System.currentTimeMillis()));
+                return;
+            }
+        }
+        close(transport);
+    }
+
+    private static void close(Transport transport) {
+        try {
+            transport.close();
+        } catch (MessagingException ignored) {
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.server.model;
+
+import com.google.gson.stream.JsonWriter;
+import com.google.inject.persist.UnitOfWork;
+import org.traccar.web.shared.model.NotificationSettings;
+import org.traccar.web.shared.model.User;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.persistence.EntityManager;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.MalformedURLException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends notifications in background threads, so slow servers do not hold database transaction open.
+ *
+ * <p>Failed notification is sent again after growing delay. Events are marked as sent in a separate short
+ * transaction after notification was delivered. While notification is being sent its events are "in flight"
+ * and must not be dispatched again.</p>
+ */
+@Singleton
+public class NotificationDispatcher {
+    static final int POOL_SIZE = 4;
+    static final int MAX_PENDING = 1000;
+    static final int MAX_ATTEMPTS = 3;
+    static final long BACKOFF = 10 * 1000;
+    static final int CHUNK_SIZE = 1000;
+
+    /**
+     * System property, which overrides address of Pushbullet API (i.e. to use a local stub)
+     */
+    public static final String PUSHBULLET_URL_PROPERTY = "traccar.pushbullet.url";
+    static final String PUSHBULLET_URL = "https://api.pushbullet.com/v2";
+
+    public static class Notification {
+        final NotificationSettings settings;
+        final String login;
+        final String email;
+        final String subject;
+        final String body;
+        final List<Long> eventIds;
+
+        public Notification(NotificationSettings settings, User user, String subject, String body, List<Long> eventIds) {
+            this.settings = settings;
+            this.login = user.getLogin();
+            this.email = user.getEmail();
+            this.subject = subject;
+            this.body = body;
+            this.eventIds = eventIds;
+        }
+    }
+
+    @Inject
+    protected Logger logger;
+
+    @Inject
+    private Provider<EntityManager> entityManager;
+
+    @Inject
+    private UnitOfWork unitOfWork;
+
+    /**
+     * Delay before the first retry, doubled for each next one
+     */
+    long backoff = BACKOFF;
+
+    final MailTransportPool mailTransportPool = new MailTransportPool();
+    final NotificationHttpTransport httpTransport = new NotificationHttpTransport();
+    String pushbulletUrl = System.getProperty(PUSHBULLET_URL_PROPERTY, PUSHBULLET_URL);
+
+    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(POOL_SIZE);
+    private final Map<Long, Integer> inFlight = new HashMap<Long, Integer>();
+    private int pending;
+
+    public NotificationDispatcher() {
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                mailTransportPool.closeIdle();
+            }
+        }, MailTransportPool.IDLE_TIMEOUT, MailTransportPool.IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized boolean isInFlight(long eventId) {
+        return inFlight.containsKey(eventId);
+    }
+
+    /**
+     * @return <code>false</code> if there are too many pending notifications, so this one must be dispatched later
+     */
+    public boolean dispatch(Notification notification) {
+        return dispatch(Collections.singletonList(notification));
+    }
+
+    /**
+     * Dispatches all notifications or none of them, so events shared by several recipients are not marked as
+     * sent by notification of one recipient while notification of another one was not dispatched. Notifications
+     * are always accepted when nothing is pending, so a batch larger than {@link #MAX_PENDING} is not
+     * postponed forever.
+     *
+     * @return <code>false</code> if there are too many pending notifications, so these must be dispatched later
+     */
+    public boolean dispatch(List<Notification> notifications) {
+        synchronized (this) {
+            if (pending > 0 && pending + notifications.size() > MAX_PENDING) {
+                return false;
+            }
+            pending += notifications.size();
+            for (Notification notification : notifications) {
+                for (Long eventId : notification.eventIds) {
+                    Integer count = inFlight.get(eventId);
+                    inFlight.put(eventId, count == null ? 1 : count + 1);
+                }
+            }
+        }
+        for (Notification notification : notifications) {
+            executor.execute(task(notification, 1));
+        }
+        return true;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        mailTransportPool.close();
+    }
+
+    private Runnable task(final Notification notification, final int attempt) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                send(notification, attempt);
+            }
+        };
+    }
+
+    void send(Notification notification, int attempt) {
+        boolean retry = false;
+        try {
+            boolean email = isEmailConfigured(notification.settings);
+            boolean pushbullet = isPushbulletConfigured(notification.settings);
+            if (email || pushbullet) {
+                boolean sentEmail = email && sendEmail(notification);
+                boolean sentPushbullet = pushbullet && sendPushbullet(notification);
+                if (sentEmail || sentPushbullet) {
+                    markAsSent(notification.eventIds);
+                } else {
+                    retry = attempt < MAX_ATTEMPTS;
+                }
+            }
+        } catch (RuntimeException ex) {
+            logger.log(Level.SEVERE, "Unable to send notification to '" + notification.email + "'", ex);
+        }
+
+        if (retry) {
+            try {
+                executor.schedule(task(notification, attempt + 1), backoff << (attempt - 1), TimeUnit.MILLISECONDS);
+                return;
+            } catch (RuntimeException ex) {
+                // executor is shut down
+            }
+        }
+        synchronized (this) {
+            pending--;
+            for (Long eventId : notification.eventIds) {
+                Integer count = inFlight.remove(eventId);
+                if (count != null && count > 1) {
+                    inFlight.put(eventId, count - 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks events as sent in a short transaction
+     */
+    void markAsSent(List<Long> eventIds) {
+        unitOfWork.begin();
+        try {
+            EntityManager entityManager = this.entityManager.get();
+            entityManager.getTransaction().begin();
+            try {
+                markAsSent(entityManager, eventIds);
+                entityManager.getTransaction().commit();
+            } catch (RuntimeException ex) {
+                entityManager.getTransaction().rollback();
+                throw ex;
+            }
+        } finally {
+            unitOfWork.end();
+        }
+    }
+
+    /**
+     * Marks events as sent by bulk updates, each of them updates at most {@link #CHUNK_SIZE} events. Events
+     * already loaded to persistence context are not refreshed.
+     *
+     * @return number of updated events
+     */
+    public static int markAsSent(EntityManager entityManager, List<Long> eventIds) {
+        int result = 0;
+        for (int i = 0; i < eventIds.size(); i += CHUNK_SIZE) {
+            result += entityManager.createQuery("UPDATE DeviceEvent e SET e.notificationSent = :true WHERE e.id IN (:ids)")
+                    .setParameter("true", true)
+                    .setParameter("ids", eventIds.subList(i, Math.min(i + CHUNK_SIZE, eventIds.size())))
+                    .executeUpdate();
+        }
+        return result;
+    }
+
+    private static boolean isEmailConfigured(NotificationSettings settings) {
+        return settings.getServer() != null && !settings.getServer().trim().isEmpty() &&
+               settings.getFromAddress() != null && !settings.getFromAddress().trim().isEmpty();
+    }
+
+    private static boolean isPushbulletConfigured(NotificationSettings settings) {
+        return settings.getPushbulletAccessToken() != null && !settings.getPushbulletAccessToken().trim().isEmpty();
+    }
+
+    private boolean sendEmail(Notification notification) {
+        logger.info("Sending Email notification to '" + notification.email + "'...");
+
+        NotificationSettings settings = notification.settings;
+        Message msg = new MimeMessage(mailTransportPool.getSession(settings));
+        try {
+            msg.setFrom(new InternetAddress(settings.getFromAddress()));
+            msg.setRecipients(Message.RecipientType.TO, InternetAddress.parse(notification.login + " <" + notification.email + ">", false));
+            msg.setSubject(notification.subject);
+
+            msg.setText(notification.body);
+            msg.setHeader("X-Mailer", "traccar-web.sendmail");
+            msg.setSentDate(new Date());
+
+            mailTransportPool.send(settings, msg);
+            return true;
+        } catch (MessagingException me) {
+            logger.log(Level.SEVERE, "Unable to send Email message", me);
+            return false;
+        }
+    }
+
+    private boolean sendPushbullet(Notification notification) {
+        logger.info("Sending Pushbullet notification to '" + notification.email + "'...");
+
+        try {
+            StringWriter body = new StringWriter();
+            JsonWriter writer = new JsonWriter(body);
+            writer.beginObject();
+            writer
+                .name("email").value(notification.email)
+                .name("type").value("note")
+                .name("title").value(notification.subject)
+                    .name("body").value(notification.body);
+            writer.endObject();
+            writer.close();
+
+            NotificationHttpTransport.Response response = httpTransport.post(pushbulletUrl + "/pushes",
+                    pushbulletHeaders(notification.settings), body.toString());
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Pushbullet response: " + response.getBody());
+            }
+            if (!response.isSuccessful()) {
+                logger.severe("Pushbullet error " + response.getCode() + ": " + response.getBody());
+                return false;
+            }
+            return true;
+        } catch (MalformedURLException mue) {
+            logger.log(Level.SEVERE, "Incorrect URL", mue);
+            return false;
+        } catch (IOException ioex) {
+            logger.log(Level.SEVERE, "I/O Error", ioex);
+            return false;
+        }
+    }
+
+    static Map<String, String> pushbulletHeaders(NotificationSettings settings) {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Authorization", "Bearer " + settings.getPushbulletAccessToken());
+        headers.put("Content-Type", "application/json");
+        return headers;
+    }
+}
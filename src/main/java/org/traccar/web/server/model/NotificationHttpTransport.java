@@ -0,0 +1,207 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.server.model;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends HTTP requests to notification services.
+ *
+ * <p>Responses are always read till the end, so connections are kept alive and reused. Each endpoint
+ * (protocol, host and port) has a limit of concurrent requests and a circuit breaker: after several failures
+ * in a row requests to the endpoint fail immediately for some time, then a single trial request is let through
+ * to find out whether endpoint is back.</p>
+ */
+public class NotificationHttpTransport {
+    static final int CONNECT_TIMEOUT = 5 * 1000;
+    static final int READ_TIMEOUT = 15 * 1000;
+    static final int MAX_CONCURRENT_REQUESTS = 4;
+    static final long ACQUIRE_TIMEOUT = 30 * 1000;
+    static final int FAILURE_THRESHOLD = 5;
+    static final long OPEN_TIME = 60 * 1000;
+    static final int MAX_RESPONSE_LENGTH = 64 * 1024;
+
+    public static class Response {
+        private final int code;
+        private final String body;
+
+        Response(int code, String body) {
+            this.code = code;
+            this.body = body;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public boolean isSuccessful() {
+            return code / 100 == 2;
+        }
+    }
+
+    /**
+     * Thrown when requests to endpoint are not sent because of its recent failures
+     */
+    public static class CircuitOpenException extends IOException {
+        CircuitOpenException(String endpoint) {
+            super("Requests to " + endpoint + " are suspended after failures");
+        }
+    }
+
+    private class Endpoint {
+        final String name;
+        final Semaphore permits = new Semaphore(maxConcurrentRequests);
+        int failures;
+        long openUntil;
+        boolean trial;
+
+        Endpoint(String name) {
+            this.name = name;
+        }
+
+        synchronized void allow() throws CircuitOpenException {
+            if (openUntil == 0) {
+                return;
+            }
+            if (trial || System.currentTimeMillis() < openUntil) {
+                throw new CircuitOpenException(name);
+            }
+            trial = true;
+        }
+
+        synchronized void succeeded() {
+            failures = 0;
+            openUntil = 0;
+            trial = false;
+        }
+
+        synchronized void failed() {
+            failures++;
+            if (trial || failures >= failureThreshold) {
+                openUntil = System.currentTimeMillis() + openTime;
+            }
+            trial = false;
+        }
+    }
+
+    int connectTimeout = CONNECT_TIMEOUT;
+    int readTimeout = READ_TIMEOUT;
+    int maxConcurrentRequests = MAX_CONCURRENT_REQUESTS;
+    long acquireTimeout = ACQUIRE_TIMEOUT;
+    int failureThreshold = FAILURE_THRESHOLD;
+    long openTime = OPEN_TIME;
+
+    private final Map<String, Endpoint> endpoints = new HashMap<String, Endpoint>();
+
+    public Response get(String url, Map<String, String> headers) throws IOException {
+        return execute("GET", url, headers, null);
+    }
+
+    public Response post(String url, Map<String, String> headers, String body) throws IOException {
+        return execute("POST", url, headers, body);
+    }
+
+    private Response execute(String method, String url, Map<String, String> headers, String body) throws IOException {
+        URL u = new URL(url);
+        Endpoint endpoint = getEndpoint(u);
+        try {
+            if (!endpoint.permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Too many concurrent requests to " + endpoint.name);
+            }
+        } catch (InterruptedException ie) {
+            throw new InterruptedIOException();
+        }
+        try {
+            endpoint.allow();
+            boolean failed = true;
+            try {
+                Response response = send(u, method, headers, body);
+                failed = response.getCode() / 100 == 5;
+                return response;
+            } finally {
+                if (failed) {
+                    endpoint.failed();
+                } else {
+                    endpoint.succeeded();
+                }
+            }
+        } finally {
+            endpoint.permits.release();
+        }
+    }
+
+    private synchronized Endpoint getEndpoint(URL url) {
+        String name = url.getProtocol() + "://" + url.getHost() + ":" + (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+        Endpoint endpoint = endpoints.get(name);
+        if (endpoint == null) {
+            endpoint = new Endpoint(name);
+            endpoints.put(name, endpoint);
+        }
+        return endpoint;
+    }
+
+    private Response send(URL url, String method, Map<String, String> headers, String body) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        conn.setRequestMethod(method);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            conn.setRequestProperty(header.getKey(), header.getValue());
+        }
+        if (body != null) {
+            byte[] bytes = body.getBytes("UTF-8");
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(bytes.length);
+            OutputStream os = conn.getOutputStream();
+            try {
+                os.write(bytes);
+            } finally {
+                os.close();
+            }
+        }
+
+        int code = conn.getResponseCode();
+        InputStream is = code >= 400 ? conn.getErrorStream() : conn.getInputStream();
+        if (is == null) {
+            return new Response(code, "");
+        }
+        try {
+            // response must be read fully to keep connection alive
+            Reader reader = new InputStreamReader(is, "UTF-8");
+            StringBuilder response = new StringBuilder();
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                if (response.length() < MAX_RESPONSE_LENGTH) {
+                    response.append(buffer, 0, Math.min(read, MAX_RESPONSE_LENGTH - response.length()));
+                }
+            }
+            return new Response(code, response.toString());
+        } finally {
+            is.close();
+        }
+    }
+}
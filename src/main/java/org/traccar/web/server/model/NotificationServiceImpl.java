@@ -15,7 +15,6 @@
  */
 package org.traccar.web.server.model;
 
-import com.google.gson.stream.JsonWriter;
 import com.google.gwt.user.server.rpc.RemoteServiceServlet;
 import com.google.inject.persist.Transactional;
 import org.traccar.web.client.model.NotificationService;
@@ -27,23 +26,14 @@ import javax.inject.Singleton;
 import javax.mail.*;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
-import javax.mail.internet.MimeMessage;
 import javax.persistence.EntityManager;
 import javax.servlet.ServletException;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.*;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
 @Singleton
@@ -108,76 +98,254 @@ public class NotificationServiceImpl extends RemoteServiceServlet implements Not
             return result;
         }
 
-        void markAsSent() {
-            markAsSent(offlineEvents);
-            markAsSent(geoFenceEvents);
+        List<Long> eventIds() {
+            List<Long> result = new ArrayList<Long>();
+            addEventIds(result, offlineEvents);
+            addEventIds(result, geoFenceEvents);
+            return result;
         }
 
-        void markAsSent(Set<DeviceEvent> events) {
+        void addEventIds(List<Long> result, Set<DeviceEvent> events) {
             if (events != null) {
                 for (DeviceEvent event : events) {
-                    event.setNotificationSent(true);
+                    result.add(event.getId());
                 }
             }
         }
     }
 
-    public static class NotificationSender extends ScheduledTask {
-        @Inject
-        Provider<EntityManager> entityManager;
+    /**
+     * Users to be notified about events of devices together with their notification settings.
+     *
+     * <p>Built once per run of {@link NotificationSender} with a fixed number of queries, so resolving
+     * recipients and settings of each event does not need any more queries.</p>
+     */
+    static class Recipients {
+        static final int CHUNK_SIZE = 1000;
+
+        private final Map<Long, User> users = new HashMap<Long, User>();
+        private final List<User> admins = new ArrayList<User>();
+        private final Map<Long, Set<User>> deviceUsers = new HashMap<Long, Set<User>>();
+        private final Map<Long, NotificationSettings> settings = new HashMap<Long, NotificationSettings>();
+        private final Map<Long, List<User>> recipients = new HashMap<Long, List<User>>();
+        private final Set<Long> loadedDeviceIds = new HashSet<Long>();
+        private boolean settingsLoaded;
+        private NotificationSettings adminSettings;
+
+        Recipients(EntityManager entityManager) {
+            for (User user : entityManager.createQuery("SELECT DISTINCT u FROM User u LEFT JOIN FETCH u.notificationEvents ORDER BY u.id", User.class).getResultList()) {
+                users.put(user.getId(), user);
+                if (user.getAdmin()) {
+                    admins.add(user);
+                }
+            }
+        }
 
-        @Transactional
-        @Override
-        public void doWork() throws Exception {
+        /**
+         * @return types of events, which at least one user wants to be notified about
+         */
+        Set<DeviceEventType> getEventTypes() {
             Set<DeviceEventType> eventTypes = new HashSet<DeviceEventType>();
-            for (User user : entityManager.get().createQuery("SELECT u FROM User u INNER JOIN FETCH u.notificationEvents", User.class).getResultList()) {
+            for (User user : users.values()) {
                 eventTypes.addAll(user.getNotificationEvents());
             }
+            return eventTypes;
+        }
 
-            if (eventTypes.isEmpty()) {
-                return;
+        /**
+         * Loads users of devices and notification settings of all users, devices and settings loaded by
+         * previous calls are not loaded again
+         */
+        void load(EntityManager entityManager, Collection<Long> deviceIds) {
+            List<Long> ids = new ArrayList<Long>();
+            for (Long deviceId : deviceIds) {
+                if (loadedDeviceIds.add(deviceId)) {
+                    ids.add(deviceId);
+                }
+            }
+            for (int i = 0; i < ids.size(); i += CHUNK_SIZE) {
+                for (Object[] row : entityManager.createQuery("SELECT d.id, u.id FROM Device d INNER JOIN d.users u WHERE d.id IN (:ids)", Object[].class)
+                        .setParameter("ids", ids.subList(i, Math.min(i + CHUNK_SIZE, ids.size())))
+                        .getResultList()) {
+                    Set<User> users = deviceUsers.get(row[0]);
+                    if (users == null) {
+                        users = new HashSet<User>();
+                        deviceUsers.put((Long) row[0], users);
+                    }
+                    users.add(this.users.get(row[1]));
+                }
             }
 
-            Map<User, DeviceEvents> events = new HashMap<User, DeviceEvents>();
-            List<User> admins = null;
-            Map<User, List<User>> managers = new HashMap<User, List<User>>();
-
-            for (DeviceEvent event : entityManager.get().createQuery("SELECT e FROM DeviceEvent e INNER JOIN FETCH e.position WHERE e.notificationSent = :false AND e.type IN (:types)", DeviceEvent.class)
-                                    .setParameter("false", false)
-                                    .setParameter("types", eventTypes)
-                                    .getResultList()) {
-                Device device = event.getDevice();
+            if (settingsLoaded) {
+                return;
+            }
+            settingsLoaded = true;
+            for (Object[] row : entityManager.createQuery("SELECT n.user.id, n FROM NotificationSettings n", Object[].class).getResultList()) {
+                settings.put((Long) row[0], (NotificationSettings) row[1]);
+            }
+            // settings of first admin ordered by id are used when there are no settings in manager hierarchy
+            for (User admin : admins) {
+                adminSettings = settings.get(admin.getId());
+                if (adminSettings != null) {
+                    break;
+                }
+            }
+        }
 
-                for (User user : device.getUsers()) {
-                    addEvent(events, user, event);
-                    List<User> userManagers = managers.get(user);
-                    if (userManagers == null) {
-                        userManagers = new LinkedList<User>();
-                        User manager = user.getManagedBy();
-                        while (manager != null) {
+        /**
+         * @return users of device, their managers, which want to receive notifications, and all admins
+         */
+        List<User> get(Device device) {
+            List<User> result = recipients.get(device.getId());
+            if (result == null) {
+                Set<User> users = new LinkedHashSet<User>();
+                Set<User> deviceUsers = this.deviceUsers.get(device.getId());
+                if (deviceUsers != null) {
+                    for (User user : deviceUsers) {
+                        users.add(user);
+                        for (User manager = user.getManagedBy(); manager != null; manager = manager.getManagedBy()) {
                             if (!manager.getNotificationEvents().isEmpty()) {
-                                userManagers.add(manager);
+                                users.add(manager);
                             }
-                            manager = manager.getManagedBy();
-                        }
-                        if (userManagers.isEmpty()) {
-                            userManagers = Collections.emptyList();
                         }
-                        managers.put(user, userManagers);
-                    }
-                    for (User manager : userManagers) {
-                        addEvent(events, manager, event);
                     }
                 }
+                users.addAll(admins);
+                result = new ArrayList<User>(users);
+                recipients.put(device.getId(), result);
+            }
+            return result;
+        }
+
+        /**
+         * @return settings of user or of the nearest manager in hierarchy or of the first admin
+         */
+        NotificationSettings getSettings(User user) {
+            for (User u = user; u != null; u = u.getManagedBy()) {
+                NotificationSettings s = settings.get(u.getId());
+                if (s != null) {
+                    return s;
+                }
+            }
+            return adminSettings;
+        }
+    }
+
+    /**
+     * Sends notifications about events published to {@link DeviceEventBus} right after they were created.
+     *
+     * <p>Events, which were not published (i.e. because of restart) or were not dispatched, are found by
+     * the sweep looking for all events not marked as sent. Sweep is performed only on request.</p>
+     */
+    public static class NotificationSender extends ScheduledTask implements DeviceEventBus.Listener {
+        static final int BATCH_SIZE = 1000;
+
+        @Inject
+        Provider<EntityManager> entityManager;
+
+        @Inject
+        AccessControlCache accessControlCache;
+
+        @Inject
+        NotificationDispatcher notificationDispatcher;
+
+        private final Set<Long> publishedEventIds = new LinkedHashSet<Long>();
+        private boolean sweep;
+
+        @Override
+        public synchronized void eventsCreated(List<Long> eventIds) {
+            publishedEventIds.addAll(eventIds);
+        }
+
+        /**
+         * Makes the next run look for all events not marked as sent
+         */
+        public synchronized void requestSweep() {
+            sweep = true;
+        }
+
+        @Transactional
+        @Override
+        public void doWork() throws Exception {
+            boolean sweep;
+            List<Long> eventIds;
+            synchronized (this) {
+                sweep = this.sweep;
+                eventIds = new ArrayList<Long>(publishedEventIds);
+                this.sweep = false;
+                publishedEventIds.clear();
+            }
+            if (!sweep && eventIds.isEmpty()) {
+                return;
+            }
+
+            EntityManager entityManager = this.entityManager.get();
+            Recipients recipients = new Recipients(entityManager);
+            Set<DeviceEventType> eventTypes = recipients.getEventTypes();
+
+            if (eventTypes.isEmpty()) {
+                return;
+            }
 
-                if (admins == null) {
-                    admins = entityManager.get().createQuery("SELECT u FROM User u WHERE u.admin=:true", User.class)
-                            .setParameter("true", true)
+            // events are processed in batches and persistence context is cleared after each of them,
+            // so memory use does not depend on size of backlog
+            long lastEventId = 0;
+            for (int i = 0; sweep || i < eventIds.size(); i += BATCH_SIZE) {
+                List<DeviceEvent> deviceEvents;
+                if (sweep) {
+                    deviceEvents = entityManager.createQuery("SELECT e FROM DeviceEvent e INNER JOIN FETCH e.position LEFT JOIN FETCH e.geoFence WHERE e.id > :id AND e.notificationSent = :false AND e.type IN (:types) ORDER BY e.id", DeviceEvent.class)
+                            .setParameter("id", lastEventId)
+                            .setParameter("false", false)
+                            .setParameter("types", eventTypes)
+                            .setMaxResults(BATCH_SIZE)
+                            .getResultList();
+                    if (deviceEvents.isEmpty()) {
+                        break;
+                    }
+                    lastEventId = deviceEvents.get(deviceEvents.size() - 1).getId();
+                } else {
+                    deviceEvents = entityManager.createQuery("SELECT e FROM DeviceEvent e INNER JOIN FETCH e.position LEFT JOIN FETCH e.geoFence WHERE e.id IN (:ids) AND e.notificationSent = :false AND e.type IN (:types)", DeviceEvent.class)
+                            .setParameter("ids", eventIds.subList(i, Math.min(i + BATCH_SIZE, eventIds.size())))
+                            .setParameter("false", false)
+                            .setParameter("types", eventTypes)
                             .getResultList();
                 }
 
-                for (User admin : admins) {
-                    addEvent(events, admin, event);
+                boolean dispatched = send(recipients, deviceEvents);
+                entityManager.clear();
+                if (!dispatched) {
+                    logger.warning("Too many pending notifications, the rest will be sent by the next sweep");
+                    break;
+                }
+                if (sweep && deviceEvents.size() < BATCH_SIZE) {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * @return <code>false</code> if notifications were not dispatched because there are too many pending ones
+         */
+        private boolean send(Recipients recipients, List<DeviceEvent> deviceEvents) {
+            Set<Long> deviceIds = new HashSet<Long>();
+            for (Iterator<DeviceEvent> it = deviceEvents.iterator(); it.hasNext(); ) {
+                DeviceEvent event = it.next();
+                if (notificationDispatcher.isInFlight(event.getId())) {
+                    it.remove();
+                } else {
+                    deviceIds.add(event.getDevice().getId());
+                }
+            }
+            if (deviceEvents.isEmpty()) {
+                return true;
+            }
+            recipients.load(entityManager.get(), deviceIds);
+
+            Map<User, DeviceEvents> events = new HashMap<User, DeviceEvents>();
+            List<NotificationDispatcher.Notification> notifications = new ArrayList<NotificationDispatcher.Notification>();
+            for (DeviceEvent event : deviceEvents) {
+                for (User user : recipients.get(event.getDevice())) {
+                    addEvent(events, user, event);
                 }
             }
 
@@ -188,26 +356,24 @@ public class NotificationServiceImpl extends RemoteServiceServlet implements Not
                     continue;
                 }
 
-                NotificationSettings settings = findNotificationSettings(user);
+                NotificationSettings settings = recipients.getSettings(user);
                 if (settings == null) {
                     logger.warning("Unable to find notification settings for '" + user.getLogin() + "' (id=" + user.getId() + "), thus he won't receive any notifications.");
                     continue;
                 }
 
-                DeviceEvents deviceEvents = entry.getValue();
+                DeviceEvents userEvents = entry.getValue();
 
                 StringBuilder message = new StringBuilder();
-                if (appendOfflineEventsText(message, deviceEvents.offlineEvents())) {
+                if (appendOfflineEventsText(message, userEvents.offlineEvents())) {
                     message.append("\n\n");
                 }
-                appendGeoFenceText(message, deviceEvents.geoFenceEvents());
+                appendGeoFenceText(message, userEvents.geoFenceEvents());
 
-                boolean sentEmail = sendEmail(settings, user, "[traccar-web] Notification", message.toString());
-                boolean sentPushbullet = sendPushbullet(settings, user, "[traccar-web] Notification", message.toString());
-                if (sentPushbullet || sentEmail) {
-                    deviceEvents.markAsSent();
-                }
+                notifications.add(new NotificationDispatcher.Notification(settings, user,
+                        "[traccar-web] Notification", message.toString(), userEvents.eventIds()));
             }
+            return notifications.isEmpty() || notificationDispatcher.dispatch(notifications);
         }
 
         private void addEvent(Map<User, DeviceEvents> events, User user, DeviceEvent event) {
@@ -217,7 +383,7 @@ public class NotificationServiceImpl extends RemoteServiceServlet implements Not
             }
             if (event.getType() == DeviceEventType.GEO_FENCE_ENTER || event.getType() == DeviceEventType.GEO_FENCE_EXIT) {
                 // check whether user has access to the geo-fence
-                if (!user.getAdmin() && !user.hasAccessTo(event.getGeoFence())) {
+                if (!user.getAdmin() && !accessControlCache.hasAccessToGeoFence(user, event.getGeoFence().getId())) {
                     return;
                 }
             }
@@ -230,38 +396,6 @@ public class NotificationServiceImpl extends RemoteServiceServlet implements Not
             userEvents.addEvent(event);
         }
 
-        private NotificationSettings findNotificationSettings(User user) {
-            NotificationSettings s = getNotificationSettings(user);
-
-            // lookup settings in manager hierarchy
-            if (s == null) {
-                User manager = user.getManagedBy();
-                while (s == null && manager != null) {
-                    s = getNotificationSettings(manager);
-                    manager = manager.getManagedBy();
-                }
-            }
-
-            // take settings from first admin ordered by id
-            if (s == null) {
-                List<NotificationSettings> settings = entityManager.get().createQuery("SELECT s FROM NotificationSettings s WHERE s.user.admin=:true ORDER BY s.user.id ASC", NotificationSettings.class)
-                        .setParameter("true", true)
-                        .getResultList();
-                if (!settings.isEmpty()) {
-                    s = settings.get(0);
-                }
-            }
-
-            return s;
-        }
-
-        private NotificationSettings getNotificationSettings(User user) {
-            List<NotificationSettings> settings = entityManager.get().createQuery("SELECT n FROM NotificationSettings n WHERE n.user = :user", NotificationSettings.class)
-                    .setParameter("user", user)
-                    .getResultList();
-            return settings.isEmpty() ? null : settings.get(0);
-        }
-
         private boolean appendOfflineEventsText(StringBuilder msg, List<DeviceEvent> events) {
             if (events.size() == 1) {
                 DeviceEvent event = events.get(0);
@@ -283,100 +417,49 @@ public class NotificationServiceImpl extends RemoteServiceServlet implements Not
             }
             return !events.isEmpty();
         }
+    }
 
-        private boolean sendEmail(NotificationSettings settings, User user, String subject, String body) {
-            // perform some validation of e-mail settings
-            if (settings.getServer() == null || settings.getServer().trim().isEmpty() ||
-                settings.getFromAddress() == null || settings.getFromAddress().trim().isEmpty()) {
-                return false;
-            }
-
-            logger.info("Sending Email notification to '" + user.getEmail() + "'...");
-
-            Session session = getSession(settings);
-            Message msg = new MimeMessage(session);
-            Transport transport = null;
-            try {
-                msg.setFrom(new InternetAddress(settings.getFromAddress()));
-                msg.setRecipients(Message.RecipientType.TO, InternetAddress.parse(user.getLogin() + " <" + user.getEmail() + ">", false));
-                msg.setSubject(subject);
-
-                msg.setText(body);
-                msg.setHeader("X-Mailer", "traccar-web.sendmail");
-                msg.setSentDate(new Date());
-
-                transport = session.getTransport("smtp");
-                transport.connect();
-                transport.sendMessage(msg, msg.getAllRecipients());
+    static final int SWEEP_PERIOD_MINUTES = 10;
 
-                return true;
-            } catch (MessagingException me) {
-                logger.log(Level.SEVERE, "Unable to send Email message", me);
-                return false;
-            } finally {
-                if (transport != null) try { transport.close(); } catch (MessagingException ignored) {}
-            }
-        }
+    @Inject
+    private NotificationSender notificationSender;
 
-        private boolean sendPushbullet(NotificationSettings settings, User user, String subject, String body) {
-            // perform some validation of Pushbullet settings
-            if (settings.getPushbulletAccessToken() == null || settings.getPushbulletAccessToken().trim().isEmpty()) {
-                return false;
-            }
-            logger.info("Sending Pushbullet notification to '" + user.getEmail() + "'...");
-
-            InputStream is = null;
-            OutputStream os = null;
-            try {
-                URL url = new URL("https://api.pushbullet.com/v2/pushes");
-                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                conn.setRequestMethod("POST");
-                conn.setRequestProperty("Authorization", "Bearer " + settings.getPushbulletAccessToken());
-                conn.setRequestProperty("Content-Type", "application/json");
-                conn.setDoOutput(true);
-                os = conn.getOutputStream();
-                JsonWriter writer = new JsonWriter(new OutputStreamWriter(os));
-                writer.beginObject();
-                writer
-                    .name("email").value(user.getEmail())
-                    .name("type").value("note")
-                    .name("title").value(subject)
-                        .name("body").value(body);
-                writer.endObject();
-                writer.flush();
-                writer.close();
-                is = conn.getInputStream();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-                try {
-                    String line;
-                    logger.info("Pushbullet response: ");
-                    while ((line = reader.readLine()) != null) logger.info(line);
-                    return true;
-                } finally {
-                    reader.close();
-                }
-            } catch (MalformedURLException mue) {
-                logger.log(Level.SEVERE, "Incorrect URL", mue);
-                return false;
-            } catch (IOException ioex) {
-                logger.log(Level.SEVERE, "I/O Error", ioex);
-                return false;
-            } finally {
-                if (is != null ) try { is.close(); } catch (IOException ignored) {}
-            }
-        }
-    }
+    @Inject
+    private NotificationDispatcher notificationDispatcher;
 
     @Inject
-    private NotificationSender notificationSender;
+    private DeviceEventBus deviceEventBus;
 
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
 
+    private final DeviceEventBus.Listener eventListener = new DeviceEventBus.Listener() {
+        @Override
+        public void eventsCreated(List<Long> eventIds) {
+            notificationSender.eventsCreated(eventIds);
+            scheduler.execute(notificationSender);
+        }
+    };
+
     @Override
     public void init() throws ServletException {
         super.init();
 
-        scheduler.scheduleAtFixedRate(notificationSender, 0, 1, TimeUnit.MINUTES);
+        deviceEventBus.addListener(eventListener);
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                notificationSender.requestSweep();
+                notificationSender.run();
+            }
+        }, 0, SWEEP_PERIOD_MINUTES, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public void destroy() {
+        deviceEventBus.removeListener(eventListener);
+        scheduler.shutdownNow();
+        notificationDispatcher.shutdown();
+        super.destroy();
     }
 
     @Transactional
@@ -401,7 +484,7 @@ public class NotificationServiceImpl extends RemoteServiceServlet implements Not
         }
     }
 
-    private static Session getSession(NotificationSettings settings) {
+    static Session getSession(NotificationSettings settings) {
         final boolean DEBUG = false;
         Properties props = new Properties();
 
@@ -409,6 +492,8 @@ public class NotificationServiceImpl extends RemoteServiceServlet implements Not
         props.put("mail.smtp.auth", Boolean.toString(settings.isUseAuthorization()));
         props.put("mail.debug", Boolean.toString(DEBUG));
         props.put("mail.smtp.port", Integer.toString(settings.getPort()));
+        props.put("mail.smtp.connectiontimeout", Integer.toString(30 * 1000));
+        props.put("mail.smtp.timeout", Integer.toString(30 * 1000));
 
         switch (settings.getSecureConnectionType()) {
             case SSL_TLS:
@@ -445,27 +530,17 @@ public class NotificationServiceImpl extends RemoteServiceServlet implements Not
     @RequireWrite
     @Override
     public void checkPushbulletSettings(NotificationSettings settings) {
-        InputStream is = null;
+        NotificationHttpTransport.Response response;
         try {
-            URL url = new URL("https://api.pushbullet.com/v2/users/me");
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("GET");
-            conn.setRequestProperty("Authorization", "Bearer " + settings.getPushbulletAccessToken());
-            is = conn.getInputStream();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-            try {
-                String line;
-                logger.info("Pushbullet response: ");
-                while ((line = reader.readLine()) != null) logger.info(line);
-            } finally {
-                reader.close();
-            }
+            response = notificationDispatcher.httpTransport.get(notificationDispatcher.pushbulletUrl + "/users/me",
+                    NotificationDispatcher.pushbulletHeaders(settings));
         } catch (MalformedURLException mue) {
             throw new IllegalArgumentException(mue);
         } catch (IOException ioex) {
             throw new IllegalStateException(ioex);
-        } finally {
-            if (is != null ) try { is.close(); } catch (IOException ignored) {}
+        }
+        if (!response.isSuccessful()) {
+            throw new IllegalStateException("Pushbullet error " + response.getCode() + ": " + response.getBody());
         }
     }
 
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.server.model;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+import org.traccar.web.shared.model.Device;
+import org.traccar.web.shared.model.Position;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.persistence.EntityManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Fills {@link Position#getStepDistance()} and {@link Position#getCumulativeDistance()} of new positions.
+ *
+ * <p>New positions are scanned by identifier in chunks, each chunk is written in its own short transaction.
+ * Positions, which arrive in time order, are calculated from the last known position of device. When position
+ * is older than the last calculated one (i.e. imported or buffered by device), all positions of device starting
+ * from its time are re-calculated.</p>
+ */
+@Singleton
+public class OdometerUpdater extends ScheduledTask {
+    static final int CHUNK_SIZE = 1000;
+    static final int MAX_CHUNKS_PER_RUN = 100;
+
+    private static final String UPDATE = "UPDATE positions SET stepDistance = ?, cumulativeDistance = ? WHERE id = ?";
+
+    /**
+     * Latest calculated position of device
+     */
+    static class State {
+        long id;
+        long time;
+        Double latitude;
+        Double longitude;
+        double cumulativeDistance;
+
+        State(long id, long time, Double latitude, Double longitude, double cumulativeDistance) {
+            this.id = id;
+            this.time = time;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.cumulativeDistance = cumulativeDistance;
+        }
+
+        boolean isBefore(long time, long id) {
+            return this.time < time || this.time == time && this.id < id;
+        }
+    }
+
+    @Inject
+    Provider<EntityManager> entityManager;
+
+    private final Map<Long, State> states = new HashMap<Long, State>();
+    private Long lastScannedPositionId;
+
+    @Override
+    public void doWork() throws Exception {
+        EntityManager entityManager = this.entityManager.get();
+        if (lastScannedPositionId == null) {
+            lastScannedPositionId = findLastScannedPositionId(entityManager);
+        }
+
+        for (int i = 0; i < MAX_CHUNKS_PER_RUN; i++) {
+            List<Object[]> rows = entityManager.createQuery(
+                    "SELECT p.id, p.device.id, p.time, p.latitude, p.longitude, p.cumulativeDistance FROM Position p WHERE p.id > :id ORDER BY p.id", Object[].class)
+                    .setParameter("id", lastScannedPositionId)
+                    .setMaxResults(CHUNK_SIZE)
+                    .getResultList();
+            if (rows.isEmpty()) {
+                break;
+            }
+
+            entityManager.getTransaction().begin();
+            try {
+                process(entityManager, rows);
+                entityManager.getTransaction().commit();
+            } catch (RuntimeException ex) {
+                entityManager.getTransaction().rollback();
+                states.clear();
+                throw ex;
+            }
+            entityManager.clear();
+            lastScannedPositionId = (Long) rows.get(rows.size() - 1)[0];
+
+            if (rows.size() < CHUNK_SIZE) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Scanning starts before the first position, which is not calculated yet, so nothing is missed after restart.
+     * States of devices are loaded when their positions are processed.
+     */
+    private Long findLastScannedPositionId(EntityManager entityManager) {
+        Long first = entityManager.createQuery("SELECT MIN(p.id) FROM Position p WHERE p.cumulativeDistance IS NULL", Long.class)
+                .getSingleResult();
+        if (first != null) {
+            return first - 1;
+        }
+        Long last = entityManager.createQuery("SELECT MAX(p.id) FROM Position p", Long.class).getSingleResult();
+        return last == null ? 0L : last;
+    }
+
+    private State loadState(EntityManager entityManager, long deviceId) {
+        List<Object[]> latest = entityManager.createQuery(
+                "SELECT p.id, p.time, p.latitude, p.longitude, p.cumulativeDistance FROM Position p" +
+                " WHERE p.device.id = :device AND p.cumulativeDistance IS NOT NULL ORDER BY p.time DESC, p.id DESC", Object[].class)
+                .setParameter("device", deviceId)
+                .setMaxResults(1)
+                .getResultList();
+        return latest.isEmpty() ? null : state(latest.get(0));
+    }
+
+    private static State state(Object[] row) {
+        return new State((Long) row[0], ((Date) row[1]).getTime(), (Double) row[2], (Double) row[3],
+                row[4] == null ? 0 : (Double) row[4]);
+    }
+
+    private void process(EntityManager entityManager, List<Object[]> rows) {
+        Map<Long, List<Object[]>> byDevice = new HashMap<Long, List<Object[]>>();
+        for (Object[] row : rows) {
+            // may be already calculated by re-calculation started from earlier position
+            if (row[5] != null) {
+                continue;
+            }
+            List<Object[]> deviceRows = byDevice.get(row[1]);
+            if (deviceRows == null) {
+                deviceRows = new ArrayList<Object[]>();
+                byDevice.put((Long) row[1], deviceRows);
+            }
+            deviceRows.add(row);
+        }
+
+        List<Object[]> updates = new ArrayList<Object[]>();
+        for (Map.Entry<Long, List<Object[]>> entry : byDevice.entrySet()) {
+            long deviceId = entry.getKey();
+            List<Object[]> deviceRows = entry.getValue();
+            Collections.sort(deviceRows, new Comparator<Object[]>() {
+                @Override
+                public int compare(Object[] o1, Object[] o2) {
+                    int result = ((Date) o1[2]).compareTo((Date) o2[2]);
+                    return result == 0 ? ((Long) o1[0]).compareTo((Long) o2[0]) : result;
+                }
+            });
+
+            State state = states.containsKey(deviceId) ? states.get(deviceId) : loadState(entityManager, deviceId);
+            Object[] first = deviceRows.get(0);
+            if (state == null || state.isBefore(((Date) first[2]).getTime(), (Long) first[0])) {
+                for (Object[] row : deviceRows) {
+                    state = calculate(state, row, updates);
+                }
+            } else {
+                state = recalculate(entityManager, deviceId, (Date) first[2], updates);
+            }
+            states.put(deviceId, state);
+        }
+
+        update(entityManager, updates);
+    }
+
+    /**
+     * Re-calculates all positions of device starting from the specified time
+     */
+    private State recalculate(EntityManager entityManager, long deviceId, Date from, List<Object[]> updates) {
+        List<Object[]> previous = entityManager.createQuery(
+                "SELECT p.id, p.time, p.latitude, p.longitude, p.cumulativeDistance FROM Position p" +
+                " WHERE p.device.id = :device AND p.time < :from ORDER BY p.time DESC, p.id DESC", Object[].class)
+                .setParameter("device", deviceId)
+                .setParameter("from", from)
+                .setMaxResults(1)
+                .getResultList();
+        State state = previous.isEmpty() ? null : state(previous.get(0));
+
+        long lastId = 0;
+        Date lastTime = from;
+        while (true) {
+            List<Object[]> rows = entityManager.createQuery(
+                    "SELECT p.id, p.device.id, p.time, p.latitude, p.longitude FROM Position p" +
+                    " WHERE p.device.id = :device AND (p.time > :time OR p.time = :time AND p.id > :id) ORDER BY p.time, p.id", Object[].class)
+                    .setParameter("device", deviceId)
+                    .setParameter("time", lastTime)
+                    .setParameter("id", lastId)
+                    .setMaxResults(CHUNK_SIZE)
+                    .getResultList();
+            for (Object[] row : rows) {
+                state = calculate(state, row, updates);
+            }
+            if (rows.size() < CHUNK_SIZE) {
+                return state;
+            }
+            Object[] last = rows.get(rows.size() - 1);
+            lastId = (Long) last[0];
+            lastTime = (Date) last[2];
+            update(entityManager, updates);
+        }
+    }
+
+    /**
+     * @param row identifier, device identifier, time, latitude and longitude of position
+     * @return state with the calculated position
+     */
+    private static State calculate(State state, Object[] row, List<Object[]> updates) {
+        Double latitude = (Double) row[3];
+        Double longitude = (Double) row[4];
+        double step = 0;
+        if (state != null && state.latitude != null && state.longitude != null && latitude != null && longitude != null) {
+            step = GeoFenceCalculator.getDistance(state.longitude, state.latitude, longitude, latitude);
+        }
+        double cumulative = (state == null ? 0 : state.cumulativeDistance) + step;
+        updates.add(new Object[] { step, cumulative, row[0] });
+        return new State((Long) row[0], ((Date) row[2]).getTime(), latitude, longitude, cumulative);
+    }
+
+    private static void update(EntityManager entityManager, final List<Object[]> updates) {
+        if (updates.isEmpty()) {
+            return;
+        }
+        entityManager.unwrap(Session.class).doWork(new Work() {
+            @Override
+            public void execute(Connection connection) throws SQLException {
+                PreparedStatement statement = connection.prepareStatement(UPDATE);
+                try {
+                    for (Object[] update : updates) {
+                        statement.setDouble(1, (Double) update[0]);
+                        statement.setDouble(2, (Double) update[1]);
+                        statement.setLong(3, (Long) update[2]);
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                } finally {
+                    statement.close();
+                }
+            }
+        });
+        updates.clear();
+    }
+
+    /**
+     * Calculates distance travelled by device within the specified period from the cumulative distances of the
+     * first and the last calculated positions
+     *
+     * @return distance in kilometers
+     */
+    public static double getDistance(EntityManager entityManager, Device device, Date from, Date to) {
+        Double first = getCumulativeDistance(entityManager, device, from, to, "ASC");
+        Double last = getCumulativeDistance(entityManager, device, from, to, "DESC");
+        return first == null || last == null ? 0 : last - first;
+    }
+
+    private static Double getCumulativeDistance(EntityManager entityManager, Device device, Date from, Date to, String order) {
+        List<Double> result = entityManager.createQuery(
+                "SELECT p.cumulativeDistance FROM Position p WHERE p.device = :device AND p.time BETWEEN :from AND :to" +
+                " AND p.cumulativeDistance IS NOT NULL ORDER BY p.time " + order + ", p.id " + order, Double.class)
+                .setParameter("device", device)
+                .setParameter("from", from)
+                .setParameter("to", to)
+                .setMaxResults(1)
+                .getResultList();
+        return result.isEmpty() ? null : result.get(0);
+    }
+}
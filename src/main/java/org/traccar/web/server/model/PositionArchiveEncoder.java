@@ -0,0 +1,211 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.server.model;
+
+import org.traccar.web.shared.model.Device;
+import org.traccar.web.shared.model.Position;
+import org.traccar.web.shared.model.PositionArchive;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds {@link PositionArchive} from positions added one by one
+ */
+public class PositionArchiveEncoder {
+    private final Device device;
+    private final boolean attributes;
+
+    private int count;
+    private long firstId;
+    private long firstTime;
+    private long previousId;
+    private long previousTime;
+    private int latitude;
+    private int longitude;
+    private int speed;
+    private int course;
+    private int altitude;
+
+    private int[] ids = new int[64];
+    private final List<Long> idJumps = new ArrayList<Long>();
+    private int[] times = new int[64];
+    private final List<Long> timeJumps = new ArrayList<Long>();
+    private int[] latitudes = new int[64];
+    private int[] longitudes = new int[64];
+    private int[] speeds = new int[64];
+    private int[] courses = new int[64];
+    private int[] altitudes = new int[64];
+    private int[] distances = new int[64];
+    private boolean[] valid;
+    private double[] power;
+    private String[] addresses;
+    private String[] other;
+    private int[] nulls;
+
+    /**
+     * @param attributes whether valid flag, power, address and other attributes must be included
+     */
+    public PositionArchiveEncoder(Device device, boolean attributes) {
+        this.device = device;
+        this.attributes = attributes;
+        if (attributes) {
+            valid = new boolean[64];
+            power = new double[64];
+            addresses = new String[64];
+            other = new String[64];
+        }
+    }
+
+    public void add(Position position) {
+        if (count == ids.length) {
+            grow(count * 2);
+        }
+
+        long id = position.getId();
+        long time = position.getTime().getTime();
+        if (count == 0) {
+            firstId = id;
+            firstTime = time;
+        } else {
+            ids[count] = delta(id - previousId, id, idJumps);
+            times[count] = delta(time - previousTime, time, timeJumps);
+        }
+        previousId = id;
+        previousTime = time;
+
+        Integer value = scale(position.getLatitude(), PositionArchive.COORDINATE_SCALE, PositionArchive.LATITUDE);
+        latitudes[count] = value == null ? 0 : value - latitude;
+        latitude = value == null ? latitude : value;
+        value = scale(position.getLongitude(), PositionArchive.COORDINATE_SCALE, PositionArchive.LONGITUDE);
+        longitudes[count] = value == null ? 0 : value - longitude;
+        longitude = value == null ? longitude : value;
+        value = scale(position.getSpeed(), PositionArchive.SPEED_SCALE, PositionArchive.SPEED);
+        speeds[count] = value == null ? 0 : value - speed;
+        speed = value == null ? speed : value;
+        value = scale(position.getCourse(), PositionArchive.COURSE_SCALE, PositionArchive.COURSE);
+        courses[count] = value == null ? 0 : value - course;
+        course = value == null ? course : value;
+        value = scale(position.getAltitude(), PositionArchive.ALTITUDE_SCALE, PositionArchive.ALTITUDE);
+        altitudes[count] = value == null ? 0 : value - altitude;
+        altitude = value == null ? altitude : value;
+        distances[count] = (int) Math.round(position.getDistance() * PositionArchive.DISTANCE_SCALE);
+
+        if (attributes) {
+            if (position.getValid() == null) {
+                setNull(PositionArchive.VALID);
+            } else {
+                valid[count] = position.getValid();
+            }
+            if (position.getPower() == null) {
+                setNull(PositionArchive.POWER);
+            } else {
+                power[count] = position.getPower();
+            }
+            addresses[count] = position.getAddress();
+            other[count] = position.getOther();
+        }
+
+        count++;
+    }
+
+    public PositionArchive encode() {
+        grow(count);
+
+        PositionArchive archive = new PositionArchive();
+        archive.setDevice(device);
+        archive.setCount(count);
+        archive.setFirstId(firstId);
+        archive.setFirstTime(firstTime);
+        archive.setIds(ids);
+        archive.setIdJumps(toArray(idJumps));
+        archive.setTimes(times);
+        archive.setTimeJumps(toArray(timeJumps));
+        archive.setLatitudes(latitudes);
+        archive.setLongitudes(longitudes);
+        archive.setSpeeds(speeds);
+        archive.setCourses(courses);
+        archive.setAltitudes(altitudes);
+        archive.setDistances(distances);
+        archive.setValid(valid);
+        archive.setPower(power);
+        archive.setAddresses(addresses);
+        archive.setOther(other);
+        if (nulls != null) {
+            archive.setNulls(Arrays.copyOf(nulls, (count * PositionArchive.NULLABLE_COLUMNS + 31) / 32));
+        }
+        return archive;
+    }
+
+    private void grow(int size) {
+        ids = Arrays.copyOf(ids, size);
+        times = Arrays.copyOf(times, size);
+        latitudes = Arrays.copyOf(latitudes, size);
+        longitudes = Arrays.copyOf(longitudes, size);
+        speeds = Arrays.copyOf(speeds, size);
+        courses = Arrays.copyOf(courses, size);
+        altitudes = Arrays.copyOf(altitudes, size);
+        distances = Arrays.copyOf(distances, size);
+        if (attributes) {
+            valid = Arrays.copyOf(valid, size);
+            power = Arrays.copyOf(power, size);
+            addresses = Arrays.copyOf(addresses, size);
+            other = Arrays.copyOf(other, size);
+        }
+    }
+
+    /**
+     * @return difference, which fits into integer, or {@link PositionArchive#JUMP} if the full value was added to jumps
+     */
+    private static int delta(long delta, long value, List<Long> jumps) {
+        if (delta > Integer.MAX_VALUE || delta <= PositionArchive.JUMP) {
+            jumps.add(value);
+            return PositionArchive.JUMP;
+        }
+        return (int) delta;
+    }
+
+    /**
+     * @return scaled value or <code>null</code> if value is missing, which is marked in bitmap
+     */
+    private Integer scale(Double value, double scale, int column) {
+        if (value == null) {
+            setNull(column);
+            return null;
+        }
+        return (int) Math.round(value * scale);
+    }
+
+    private void setNull(int column) {
+        int bit = count * PositionArchive.NULLABLE_COLUMNS + column;
+        int index = bit >>> 5;
+        if (nulls == null) {
+            nulls = new int[Math.max(ids.length * PositionArchive.NULLABLE_COLUMNS / 32, index + 1)];
+        } else if (index >= nulls.length) {
+            nulls = Arrays.copyOf(nulls, Math.max(nulls.length * 2, index + 1));
+        }
+        nulls[index] |= 1 << (bit & 31);
+    }
+
+    private static long[] toArray(List<Long> values) {
+        long[] result = new long[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+}
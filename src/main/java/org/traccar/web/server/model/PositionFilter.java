@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.server.model;
+
+import org.traccar.web.shared.model.Device;
+import org.traccar.web.shared.model.Position;
+import org.traccar.web.shared.model.UserSettings;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import java.util.Date;
+
+/**
+ * Builds archive query based on user's filter settings and applies the rest of filters
+ * (duplicates), which can't be expressed in query, to the positions one by one
+ */
+public class PositionFilter {
+    private final UserSettings settings;
+    private final boolean enabled;
+
+    private Position previous;
+
+    public PositionFilter(UserSettings settings, boolean enabled) {
+        this.settings = settings;
+        this.enabled = enabled;
+    }
+
+    public TypedQuery<Position> createQuery(EntityManager entityManager, Device device, Date from, Date to) {
+        return createQuery(entityManager, device, from, to, false, null, 0);
+    }
+
+    /**
+     * Creates query, which returns positions ordered by time and identifier, starting after the specified one
+     *
+     * @param afterTime time of the last position of previous page, <code>null</code> to start from the first position
+     * @param afterId identifier of the last position of previous page
+     */
+    public TypedQuery<Position> createQuery(EntityManager entityManager, Device device, Date from, Date to, Date afterTime, long afterId) {
+        return createQuery(entityManager, device, from, to, true, afterTime, afterId);
+    }
+
+    private TypedQuery<Position> createQuery(EntityManager entityManager, Device device, Date from, Date to,
+                                             boolean ordered, Date afterTime, long afterId) {
+        String queryString = "SELECT x FROM Position x WHERE x.device = :device AND x.time BETWEEN :from AND :to";
+        if (afterTime != null) {
+            queryString += " AND (x.time > :afterTime OR x.time = :afterTime AND x.id > :afterId)";
+        }
+
+        if (enabled) {
+            if (settings.isHideZeroCoordinates()) {
+                queryString += " AND (x.latitude != 0 OR x.longitude != 0)";
+            }
+            if (settings.isHideInvalidLocations()) {
+                queryString += " AND x.valid = TRUE";
+            }
+            if (settings.getSpeedModifier() != null && settings.getSpeedForFilter() != null) {
+                queryString += " AND x.speed " + settings.getSpeedModifier() + " :speed";
+            }
+            if (settings.getMinDistance() != null) {
+                // positions, which distance is not calculated yet, are not filtered
+                queryString += " AND (x.stepDistance IS NULL OR x.stepDistance >= :minDistance)";
+            }
+        }
+
+        if (ordered) {
+            queryString += " ORDER BY x.time, x.id";
+        }
+
+        TypedQuery<Position> query = entityManager.createQuery(queryString, Position.class);
+        query.setParameter("device", device);
+        query.setParameter("from", from);
+        query.setParameter("to", to);
+        if (afterTime != null) {
+            query.setParameter("afterTime", afterTime);
+            query.setParameter("afterId", afterId);
+        }
+
+        if (enabled) {
+            if (settings.getSpeedModifier() != null && settings.getSpeedForFilter() != null) {
+                query.setParameter("speed", settings.getSpeedUnit().toKnots(settings.getSpeedForFilter()));
+            }
+            if (settings.getMinDistance() != null) {
+                query.setParameter("minDistance", settings.getMinDistance());
+            }
+        }
+
+        return query;
+    }
+
+    /**
+     * Calculates distance from the previous position returned by query and checks whether position passes filters
+     *
+     * @return <code>true</code> if position must be included into the result
+     */
+    public boolean accept(Position position) {
+        Position prev = previous;
+        previous = position;
+        if (prev == null) {
+            return true;
+        }
+
+        position.setDistance(GeoFenceCalculator.getDistance(prev.getLongitude(), prev.getLatitude(), position.getLongitude(), position.getLatitude()));
+
+        if (enabled && settings.isHideDuplicates()) {
+            return !prev.getTime().equals(position.getTime());
+        }
+        return true;
+    }
+}
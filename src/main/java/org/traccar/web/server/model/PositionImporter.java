@@ -0,0 +1,254 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.server.model;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+import org.traccar.web.shared.model.Device;
+import org.traccar.web.shared.model.Position;
+
+import javax.persistence.EntityManager;
+import java.sql.*;
+import java.util.*;
+import java.util.Date;
+
+/**
+ * Stores imported positions of a single device in batches.
+ *
+ * <p>For each batch positions already existing in database are loaded with one query by time range
+ * of the batch and duplicates are found in memory. New positions are written with JDBC batch insert,
+ * since identity generated keys do not allow hibernate to batch inserts. Positions are not attached
+ * to the persistence context.</p>
+ */
+public class PositionImporter {
+    static final int BATCH_SIZE = 1000;
+
+    private static final String INSERT = "INSERT INTO positions (device_id, time, valid, latitude, longitude, altitude, speed, course, power, address, other) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static class Key {
+        final long time;
+        final Double longitude;
+        final Double latitude;
+
+        Key(Date time, Double longitude, Double latitude) {
+            this.time = time.getTime();
+            this.longitude = longitude;
+            this.latitude = latitude;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return time == key.time
+                    && (longitude == null ? key.longitude == null : longitude.equals(key.longitude))
+                    && (latitude == null ? key.latitude == null : latitude.equals(key.latitude));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (time ^ (time >>> 32));
+            result = 31 * result + (longitude == null ? 0 : longitude.hashCode());
+            result = 31 * result + (latitude == null ? 0 : latitude.hashCode());
+            return result;
+        }
+    }
+
+    private final EntityManager entityManager;
+    private final Device device;
+    private final List<Position> batch = new ArrayList<Position>(BATCH_SIZE);
+
+    private int processed;
+    private int imported;
+    private Date latestTime;
+
+    public PositionImporter(EntityManager entityManager, Device device) {
+        this.entityManager = entityManager;
+        this.device = device;
+    }
+
+    /**
+     * Adds position to the current batch, batch is written to database when it is full
+     *
+     * @return <code>true</code> if batch was written
+     */
+    public boolean add(Position position) {
+        batch.add(position);
+        if (latestTime == null || latestTime.before(position.getTime())) {
+            latestTime = position.getTime();
+        }
+        if (batch.size() >= BATCH_SIZE) {
+            flush();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes remaining positions and updates latest position of device if imported positions are newer
+     */
+    public void finish() {
+        flush();
+        if (latestTime != null && (device.getLatestPosition() == null || device.getLatestPosition().getTime().before(latestTime))) {
+            List<Position> latest = entityManager.createQuery("SELECT p FROM Position p WHERE p.device = :device AND p.time = :time ORDER BY p.id DESC", Position.class)
+                    .setParameter("device", device)
+                    .setParameter("time", latestTime)
+                    .setMaxResults(1)
+                    .getResultList();
+            if (!latest.isEmpty()) {
+                device.setLatestPosition(latest.get(0));
+            }
+        }
+    }
+
+    public int getProcessed() {
+        return processed;
+    }
+
+    public int getImported() {
+        return imported;
+    }
+
+    public int getDuplicates() {
+        return processed - imported;
+    }
+
+    private void flush() {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        Date from = batch.get(0).getTime();
+        Date to = from;
+        for (Position position : batch) {
+            if (position.getTime().before(from)) {
+                from = position.getTime();
+            }
+            if (position.getTime().after(to)) {
+                to = position.getTime();
+            }
+        }
+
+        Map<Key, List<Object[]>> existing = new HashMap<Key, List<Object[]>>();
+        for (Object[] row : entityManager.createQuery(
+                "SELECT p.time, p.longitude, p.latitude, p.altitude, p.other FROM Position p WHERE p.device = :device AND p.time BETWEEN :from AND :to", Object[].class)
+                .setParameter("device", device)
+                .setParameter("from", from)
+                .setParameter("to", to)
+                .getResultList()) {
+            add(existing, new Key((Date) row[0], (Double) row[1], (Double) row[2]), row);
+        }
+
+        final List<Position> newPositions = new ArrayList<Position>(batch.size());
+        for (Position position : batch) {
+            Key key = new Key(position.getTime(), position.getLongitude(), position.getLatitude());
+            if (!exists(existing.get(key), position)) {
+                newPositions.add(position);
+                // same point may appear in the file several times
+                add(existing, key, new Object[] { position.getTime(), position.getLongitude(), position.getLatitude(), position.getAltitude(), position.getOther() });
+            }
+        }
+
+        if (!newPositions.isEmpty()) {
+            entityManager.flush();
+            entityManager.unwrap(Session.class).doWork(new Work() {
+                @Override
+                public void execute(Connection connection) throws SQLException {
+                    insert(connection, newPositions);
+                }
+            });
+        }
+
+        processed += batch.size();
+        imported += newPositions.size();
+        batch.clear();
+    }
+
+    private static void add(Map<Key, List<Object[]>> existing, Key key, Object[] row) {
+        List<Object[]> rows = existing.get(key);
+        if (rows == null) {
+            rows = new ArrayList<Object[]>(1);
+            existing.put(key, rows);
+        }
+        rows.add(row);
+    }
+
+    private static boolean exists(List<Object[]> rows, Position position) {
+        if (rows != null) {
+            for (Object[] row : rows) {
+                Double altitude = (Double) row[3];
+                if ((altitude == null ? position.getAltitude() == null : equals(altitude, position.getAltitude(), 0.00001d)) &&
+                        row[4] != null && row[4].equals(position.getOther())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void insert(Connection connection, List<Position> positions) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(INSERT);
+        try {
+            for (Position position : positions) {
+                statement.setLong(1, device.getId());
+                statement.setTimestamp(2, new Timestamp(position.getTime().getTime()));
+                setBoolean(statement, 3, position.getValid());
+                setDouble(statement, 4, position.getLatitude());
+                setDouble(statement, 5, position.getLongitude());
+                setDouble(statement, 6, position.getAltitude());
+                setDouble(statement, 7, position.getSpeed());
+                setDouble(statement, 8, position.getCourse());
+                setDouble(statement, 9, position.getPower());
+                setString(statement, 10, position.getAddress());
+                setString(statement, 11, position.getOther());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static void setBoolean(PreparedStatement statement, int index, Boolean value) throws SQLException {
+        if (value == null) {
+            statement.setNull(index, Types.BOOLEAN);
+        } else {
+            statement.setBoolean(index, value);
+        }
+    }
+
+    private static void setDouble(PreparedStatement statement, int index, Double value) throws SQLException {
+        if (value == null) {
+            statement.setNull(index, Types.DOUBLE);
+        } else {
+            statement.setDouble(index, value);
+        }
+    }
+
+    private static void setString(PreparedStatement statement, int index, String value) throws SQLException {
+        if (value == null) {
+            statement.setNull(index, Types.VARCHAR);
+        } else {
+            statement.setString(index, value);
+        }
+    }
+
+    private static boolean equals(Double d1, Double d2, double delta) {
+        return d1 != null && d2 != null && Math.abs(d1 - d2) < delta;
+    }
+}
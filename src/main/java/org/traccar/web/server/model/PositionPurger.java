@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.server.model;
+
+import org.traccar.web.shared.model.ApplicationSettings;
+import org.traccar.web.shared.model.Device;
+import org.traccar.web.shared.model.DeviceEvent;
+import org.traccar.web.shared.model.Position;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Deletes positions and events, which are older than retention period of device or application.
+ *
+ * <p>Positions are deleted in chunks ordered by time and identifier, each chunk together with its events
+ * is deleted in its own short transaction. Latest position of device is never deleted.</p>
+ */
+@Singleton
+public class PositionPurger extends ScheduledTask {
+    static final long DAY = 24 * 60 * 60 * 1000L;
+    static final int CHUNK_SIZE = 1000;
+    static final int MAX_CHUNKS_PER_RUN = 100;
+
+    @Inject
+    private Provider<EntityManager> entityManager;
+    @Inject
+    private Provider<ApplicationSettings> applicationSettings;
+
+    @Override
+    public void doWork() throws Exception {
+        EntityManager entityManager = this.entityManager.get();
+        int defaultRetentionDays = applicationSettings.get().getRetentionDays();
+        long started = System.currentTimeMillis();
+        int chunks = 0;
+        int positions = 0;
+        int events = 0;
+
+        List<Object[]> devices = entityManager.createQuery(
+                "SELECT d.id, d.retentionDays, p.id FROM Device d LEFT JOIN d.latestPosition p", Object[].class)
+                .getResultList();
+        for (Object[] device : devices) {
+            int retentionDays = (Integer) device[1] > 0 ? (Integer) device[1] : defaultRetentionDays;
+            if (retentionDays <= 0) {
+                continue;
+            }
+            Date before = new Date(started - retentionDays * DAY);
+
+            Date lastTime = new Date(0);
+            long lastId = 0;
+            while (chunks < MAX_CHUNKS_PER_RUN) {
+                List<Object[]> rows = entityManager.createQuery(
+                        "SELECT p.id, p.time FROM Position p WHERE p.device.id = :device AND p.time < :before" +
+                        " AND (p.time > :time OR p.time = :time AND p.id > :id) ORDER BY p.time, p.id", Object[].class)
+                        .setParameter("device", device[0])
+                        .setParameter("before", before)
+                        .setParameter("time", lastTime)
+                        .setParameter("id", lastId)
+                        .setMaxResults(CHUNK_SIZE)
+                        .getResultList();
+                List<Long> ids = new ArrayList<Long>(rows.size());
+                for (Object[] row : rows) {
+                    if (!row[0].equals(device[2])) {
+                        ids.add((Long) row[0]);
+                    }
+                }
+
+                if (!ids.isEmpty()) {
+                    entityManager.getTransaction().begin();
+                    try {
+                        events += entityManager.createQuery("DELETE FROM " + DeviceEvent.class.getSimpleName() + " e WHERE e.position.id IN (:ids)")
+                                .setParameter("ids", ids)
+                                .executeUpdate();
+                        positions += entityManager.createQuery("DELETE FROM " + Position.class.getSimpleName() + " p WHERE p.id IN (:ids)")
+                                .setParameter("ids", ids)
+                                .executeUpdate();
+                        entityManager.getTransaction().commit();
+                    } catch (RuntimeException ex) {
+                        entityManager.getTransaction().rollback();
+                        throw ex;
+                    }
+                    entityManager.clear();
+                    chunks++;
+                }
+
+                if (rows.size() < CHUNK_SIZE) {
+                    break;
+                }
+                Object[] last = rows.get(rows.size() - 1);
+                lastId = (Long) last[0];
+                lastTime = (Date) last[1];
+            }
+        }
+
+        if (positions > 0) {
+            long time = Math.max(System.currentTimeMillis() - started, 1);
+            logger.info(String.format("Purged %d positions and %d events in %d ms (%d rows/sec)",
+                    positions, events, time, (positions + events) * 1000L / time));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.server.model;
+
+import org.hibernate.CacheMode;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.traccar.web.shared.model.Position;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+/**
+ * Reads positions with forward-only database cursor. Only the current position is attached
+ * to the persistence context, previous one is evicted on each step, so memory consumption
+ * does not depend on the number of rows.
+ */
+public class PositionScroll {
+    static final int FETCH_SIZE = 500;
+
+    private final Session session;
+    private final ScrollableResults results;
+    private final PositionFilter filter;
+
+    private Position current;
+
+    public PositionScroll(EntityManager entityManager, TypedQuery<Position> query, PositionFilter filter) {
+        this.session = entityManager.unwrap(Session.class);
+        this.filter = filter;
+
+        Query hibernateQuery = query.unwrap(Query.class);
+        hibernateQuery.setReadOnly(true);
+        hibernateQuery.setCacheMode(CacheMode.IGNORE);
+        hibernateQuery.setFetchSize(FETCH_SIZE);
+        this.results = hibernateQuery.scroll(ScrollMode.FORWARD_ONLY);
+    }
+
+    /**
+     * Moves cursor to the next position, which passes filter
+     *
+     * @return <code>false</code> if there are no more positions
+     */
+    public boolean next() {
+        while (true) {
+            detach();
+            if (!results.next()) {
+                return false;
+            }
+            current = (Position) results.get(0);
+            if (filter.accept(current)) {
+                return true;
+            }
+        }
+    }
+
+    public Position get() {
+        return current;
+    }
+
+    public void close() {
+        detach();
+        results.close();
+    }
+
+    private void detach() {
+        if (current != null) {
+            session.evict(current);
+            current = null;
+        }
+    }
+}
@@ -15,11 +15,9 @@
  */
 package org.traccar.web.server.model;
 
-import org.traccar.web.shared.model.User;
-
 public enum Role {
-    ADMIN { @Override boolean has(User user) { return user.getAdmin(); } },
-    MANAGER { @Override boolean has(User user) { return user.getManager(); } };
+    ADMIN { @Override boolean has(UserRoles roles) { return roles.isAdmin(); } },
+    MANAGER { @Override boolean has(UserRoles roles) { return roles.isManager(); } };
 
-    abstract boolean has(User user);
+    abstract boolean has(UserRoles roles);
 }
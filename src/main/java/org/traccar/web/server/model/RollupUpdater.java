@@ -0,0 +1,358 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.server.model;
+
+import org.traccar.web.shared.model.DailyRollup;
+import org.traccar.web.shared.model.Device;
+import org.traccar.web.shared.model.HourlyRollup;
+import org.traccar.web.shared.model.PositionRollup;
+import org.traccar.web.shared.model.RollupState;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.persistence.EntityManager;
+import java.util.*;
+
+/**
+ * Maintains {@link HourlyRollup} and {@link DailyRollup} of devices.
+ *
+ * <p>New positions are scanned by identifier in chunks after {@link OdometerUpdater} has calculated their
+ * distances. Hours, which received new positions, are aggregated again from raw positions, days are aggregated
+ * from hours. Each chunk is written in its own short transaction together with {@link RollupState}, so scanning
+ * continues from the same position after restart.</p>
+ */
+@Singleton
+public class RollupUpdater extends ScheduledTask {
+    static final long HOUR = 60 * 60 * 1000L;
+    static final long DAY = 24 * HOUR;
+    static final int CHUNK_SIZE = 1000;
+    static final int MAX_CHUNKS_PER_RUN = 100;
+
+    @Inject
+    Provider<EntityManager> entityManager;
+
+    /**
+     * Time of the latest scanned position of device
+     */
+    private final Map<Long, Long> latestTimes = new HashMap<Long, Long>();
+    private Long lastScannedPositionId;
+
+    @Override
+    public void doWork() throws Exception {
+        EntityManager entityManager = this.entityManager.get();
+        if (lastScannedPositionId == null) {
+            lastScannedPositionId = findLastScannedPositionId(entityManager);
+        }
+
+        for (int i = 0; i < MAX_CHUNKS_PER_RUN; i++) {
+            List<Object[]> rows = entityManager.createQuery(
+                    "SELECT p.id, p.device.id, p.time, p.stepDistance FROM Position p WHERE p.id > :id ORDER BY p.id", Object[].class)
+                    .setParameter("id", lastScannedPositionId)
+                    .setMaxResults(CHUNK_SIZE)
+                    .getResultList();
+
+            // wait until distances are calculated
+            int count = 0;
+            while (count < rows.size() && rows.get(count)[3] != null) {
+                count++;
+            }
+            if (count == 0) {
+                break;
+            }
+
+            Long lastPositionId = (Long) rows.get(count - 1)[0];
+            entityManager.getTransaction().begin();
+            try {
+                update(entityManager, findChangedHours(entityManager, rows.subList(0, count)));
+                saveState(entityManager, lastPositionId);
+                entityManager.getTransaction().commit();
+            } catch (RuntimeException ex) {
+                entityManager.getTransaction().rollback();
+                latestTimes.clear();
+                throw ex;
+            }
+            entityManager.clear();
+            lastScannedPositionId = lastPositionId;
+
+            if (count < CHUNK_SIZE) {
+                break;
+            }
+        }
+    }
+
+    private static RollupState findState(EntityManager entityManager) {
+        List<RollupState> result = entityManager.createQuery("SELECT s FROM RollupState s", RollupState.class)
+                .setMaxResults(1)
+                .getResultList();
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    private static void saveState(EntityManager entityManager, long lastPositionId) {
+        RollupState state = findState(entityManager);
+        if (state == null) {
+            state = new RollupState();
+            entityManager.persist(state);
+        }
+        state.setLastPositionId(lastPositionId);
+    }
+
+    /**
+     * Scanning continues from the saved position. When there is no saved one (i.e. rollups were created before
+     * it was saved), scanning starts from the earliest of the latest rolled up positions of devices and the
+     * first positions of devices, which were never rolled up, so nothing is missed.
+     */
+    private Long findLastScannedPositionId(EntityManager entityManager) {
+        RollupState state = findState(entityManager);
+        if (state != null) {
+            return state.getLastPositionId();
+        }
+        Long rolledUp = entityManager.createQuery(
+                "SELECT MIN(r.lastPositionId) FROM HourlyRollup r" +
+                " WHERE r.time = (SELECT MAX(l.time) FROM HourlyRollup l WHERE l.device = r.device)", Long.class)
+                .getSingleResult();
+        Long notRolledUp = entityManager.createQuery(
+                "SELECT MIN(p.id) FROM Position p" +
+                " WHERE NOT EXISTS (SELECT r.id FROM HourlyRollup r WHERE r.device = p.device)", Long.class)
+                .getSingleResult();
+        long result = rolledUp == null ? Long.MAX_VALUE : rolledUp;
+        if (notRolledUp != null) {
+            result = Math.min(result, notRolledUp - 1);
+        }
+        return result == Long.MAX_VALUE ? 0L : result;
+    }
+
+    /**
+     * @param rows identifier, device identifier and time of new positions
+     * @return start times of hours to aggregate by device identifier
+     */
+    private Map<Long, SortedSet<Long>> findChangedHours(EntityManager entityManager, List<Object[]> rows) {
+        Map<Long, SortedSet<Long>> result = new HashMap<Long, SortedSet<Long>>();
+        for (Object[] row : rows) {
+            Long deviceId = (Long) row[1];
+            long time = ((Date) row[2]).getTime();
+            SortedSet<Long> hours = result.get(deviceId);
+            if (hours == null) {
+                hours = new TreeSet<Long>();
+                result.put(deviceId, hours);
+            }
+            hours.add(floor(time, HOUR));
+
+            Long latestTime = latestTimes.get(deviceId);
+            if (latestTime == null) {
+                // after restart time is taken from positions, which were scanned before
+                Date previous = entityManager.createQuery(
+                        "SELECT MAX(p.time) FROM Position p WHERE p.device.id = :device AND p.id < :id", Date.class)
+                        .setParameter("device", deviceId)
+                        .setParameter("id", row[0])
+                        .getSingleResult();
+                latestTime = previous == null ? null : previous.getTime();
+            }
+            if (latestTime != null && time < latestTime) {
+                // distance of the next position was re-calculated
+                List<Date> next = entityManager.createQuery(
+                        "SELECT p.time FROM Position p WHERE p.device.id = :device AND (p.time > :time OR p.time = :time AND p.id > :id)" +
+                        " ORDER BY p.time, p.id", Date.class)
+                        .setParameter("device", deviceId)
+                        .setParameter("time", row[2])
+                        .setParameter("id", row[0])
+                        .setMaxResults(1)
+                        .getResultList();
+                if (!next.isEmpty()) {
+                    hours.add(floor(next.get(0).getTime(), HOUR));
+                }
+            }
+            latestTimes.put(deviceId, latestTime == null ? time : Math.max(time, latestTime));
+        }
+        return result;
+    }
+
+    private static void update(EntityManager entityManager, Map<Long, SortedSet<Long>> changedHours) {
+        for (Map.Entry<Long, SortedSet<Long>> entry : changedHours.entrySet()) {
+            Device device = entityManager.find(Device.class, entry.getKey());
+            if (device == null) {
+                continue;
+            }
+            SortedSet<Long> days = new TreeSet<Long>();
+            for (Long hour : entry.getValue()) {
+                HourlyRollup rollup = find(entityManager, HourlyRollup.class, device, hour);
+                if (rollup == null) {
+                    rollup = new HourlyRollup();
+                    rollup.setDevice(device);
+                }
+                aggregate(entityManager, device, hour, hour + HOUR, rollup);
+                save(entityManager, rollup);
+                days.add(floor(hour, DAY));
+            }
+            for (Long day : days) {
+                DailyRollup rollup = find(entityManager, DailyRollup.class, device, day);
+                if (rollup == null) {
+                    rollup = new DailyRollup();
+                    rollup.setDevice(device);
+                }
+                reset(rollup, day, day + DAY);
+                for (HourlyRollup hourly : getRollups(entityManager, HourlyRollup.class, device, day, day + DAY)) {
+                    add(rollup, hourly);
+                }
+                save(entityManager, rollup);
+            }
+        }
+    }
+
+    private static <T extends PositionRollup> T find(EntityManager entityManager, Class<T> type, Device device, long time) {
+        List<T> result = entityManager.createQuery(
+                "SELECT r FROM " + type.getSimpleName() + " r WHERE r.device = :device AND r.time = :time", type)
+                .setParameter("device", device)
+                .setParameter("time", new Date(time))
+                .getResultList();
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    private static void save(EntityManager entityManager, PositionRollup rollup) {
+        if (rollup.getPointCount() > 0) {
+            if (rollup.getId() == 0) {
+                entityManager.persist(rollup);
+            }
+        } else if (rollup.getId() != 0) {
+            entityManager.remove(rollup);
+        }
+    }
+
+    private static <T extends PositionRollup> List<T> getRollups(EntityManager entityManager, Class<T> type, Device device, long from, long to) {
+        return entityManager.createQuery(
+                "SELECT r FROM " + type.getSimpleName() + " r WHERE r.device = :device AND r.time >= :from AND r.time < :to ORDER BY r.time", type)
+                .setParameter("device", device)
+                .setParameter("from", new Date(from))
+                .setParameter("to", new Date(to))
+                .getResultList();
+    }
+
+    /**
+     * Aggregates raw positions of device within the specified period
+     *
+     * @param to end of period, exclusive
+     */
+    static void aggregate(EntityManager entityManager, Device device, long from, long to, PositionRollup rollup) {
+        reset(rollup, from, to);
+
+        List<Date> previous = entityManager.createQuery(
+                "SELECT p.time FROM Position p WHERE p.device = :device AND p.time < :from ORDER BY p.time DESC, p.id DESC", Date.class)
+                .setParameter("device", device)
+                .setParameter("from", new Date(from))
+                .setMaxResults(1)
+                .getResultList();
+        long previousTime = previous.isEmpty() ? Long.MIN_VALUE : previous.get(0).getTime();
+        long timeout = device.getTimeout() * 1000L;
+
+        List<Object[]> rows = entityManager.createQuery(
+                "SELECT p.id, p.time, p.speed, p.stepDistance FROM Position p" +
+                " WHERE p.device = :device AND p.time >= :from AND p.time < :to ORDER BY p.time, p.id", Object[].class)
+                .setParameter("device", device)
+                .setParameter("from", new Date(from))
+                .setParameter("to", new Date(to))
+                .getResultList();
+        for (Object[] row : rows) {
+            long time = ((Date) row[1]).getTime();
+            Double speed = (Double) row[2];
+            if (rollup.getPointCount() == 0) {
+                rollup.setFirstPositionId((Long) row[0]);
+            }
+            rollup.setLastPositionId((Long) row[0]);
+            rollup.setPointCount(rollup.getPointCount() + 1);
+            if (row[3] != null) {
+                rollup.setDistance(rollup.getDistance() + (Double) row[3]);
+            }
+            if (speed != null) {
+                rollup.setMaxSpeed(Math.max(rollup.getMaxSpeed(), speed));
+                if (speed > device.getIdleSpeedThreshold() && previousTime != Long.MIN_VALUE && time - previousTime <= timeout) {
+                    rollup.setMovingTime(rollup.getMovingTime() + time - previousTime);
+                }
+            }
+            previousTime = time;
+        }
+    }
+
+    private static void reset(PositionRollup rollup, long from, long to) {
+        rollup.setTime(new Date(from));
+        rollup.setEndTime(new Date(to));
+        rollup.setFirstPositionId(0);
+        rollup.setLastPositionId(0);
+        rollup.setDistance(0);
+        rollup.setMaxSpeed(0);
+        rollup.setMovingTime(0);
+        rollup.setPointCount(0);
+    }
+
+    private static void add(PositionRollup rollup, PositionRollup other) {
+        if (rollup.getPointCount() == 0) {
+            rollup.setFirstPositionId(other.getFirstPositionId());
+        }
+        rollup.setLastPositionId(other.getLastPositionId());
+        rollup.setPointCount(rollup.getPointCount() + other.getPointCount());
+        rollup.setDistance(rollup.getDistance() + other.getDistance());
+        rollup.setMaxSpeed(Math.max(rollup.getMaxSpeed(), other.getMaxSpeed()));
+        rollup.setMovingTime(rollup.getMovingTime() + other.getMovingTime());
+    }
+
+    /**
+     * Returns aggregated positions of device within the specified period. Whole days and hours are read from
+     * rollups, raw positions are aggregated only for the incomplete hours at the beginning and at the end of period.
+     *
+     * @param to end of period, inclusive
+     * @return rollups ordered by time, periods without positions are skipped
+     */
+    public static List<PositionRollup> getRollups(EntityManager entityManager, Device device, Date from, Date to) {
+        long start = from.getTime();
+        long end = to.getTime() + 1;
+        List<PositionRollup> result = new ArrayList<PositionRollup>();
+
+        long hourStart = Math.min(ceil(start, HOUR), end);
+        long hourEnd = Math.max(hourStart, floor(end, HOUR));
+        addRaw(entityManager, device, start, hourStart, result);
+        if (hourStart < hourEnd) {
+            long dayStart = ceil(hourStart, DAY);
+            long dayEnd = floor(hourEnd, DAY);
+            if (dayStart < dayEnd) {
+                result.addAll(getRollups(entityManager, HourlyRollup.class, device, hourStart, dayStart));
+                result.addAll(getRollups(entityManager, DailyRollup.class, device, dayStart, dayEnd));
+                result.addAll(getRollups(entityManager, HourlyRollup.class, device, dayEnd, hourEnd));
+            } else {
+                result.addAll(getRollups(entityManager, HourlyRollup.class, device, hourStart, hourEnd));
+            }
+        }
+        addRaw(entityManager, device, hourEnd, end, result);
+        return result;
+    }
+
+    private static void addRaw(EntityManager entityManager, Device device, long from, long to, List<PositionRollup> result) {
+        if (from < to) {
+            PositionRollup rollup = new PositionRollup();
+            aggregate(entityManager, device, from, to, rollup);
+            if (rollup.getPointCount() > 0) {
+                result.add(rollup);
+            }
+        }
+    }
+
+    static long floor(long time, long period) {
+        return time - (time % period + period) % period;
+    }
+
+    static long ceil(long time, long period) {
+        long result = floor(time, period);
+        return result == time ? result : result + period;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.server.model;
+
+import org.traccar.web.shared.model.Position;
+
+import java.util.*;
+
+/**
+ * Simplifies track with Douglas-Peucker algorithm applied to consecutive windows of positions, so
+ * positions can be fed one by one right from the database cursor.
+ *
+ * <p>Positions, which must stay in the track (i.e. positions with events, first and last positions of
+ * stops), split track into independent parts. Distance of dropped positions is added to the next kept
+ * one, so the total track length does not change.</p>
+ */
+public class TrackSimplifier {
+    static final int WINDOW_SIZE = 2000;
+
+    private static final double EARTH_RADIUS = 6371009;
+
+    private final double tolerance;
+    private final Set<Long> keptPositionIds;
+    private final double idleSpeedThreshold;
+
+    private final List<Position> window = new ArrayList<Position>();
+    private final List<Position> result = new ArrayList<Position>();
+    private boolean stopped;
+
+    /**
+     * @param tolerance maximal distance in meters from the original position to the simplified track
+     * @param keptPositionIds identifiers of positions, which must be kept (i.e. having events)
+     * @param idleSpeedThreshold speed at or below which device is considered stopped
+     */
+    public TrackSimplifier(double tolerance, Set<Long> keptPositionIds, double idleSpeedThreshold) {
+        this.tolerance = tolerance;
+        this.keptPositionIds = keptPositionIds;
+        this.idleSpeedThreshold = idleSpeedThreshold;
+    }
+
+    public void add(Position position) {
+        boolean stop = position.getSpeed() != null && position.getSpeed() <= idleSpeedThreshold;
+        boolean keep = keptPositionIds.contains(position.getId()) || window.isEmpty() || stop != stopped;
+        if (stop != stopped && !window.isEmpty()) {
+            // last position of the previous stop or movement must be kept as well
+            flush();
+        }
+        stopped = stop;
+
+        window.add(position);
+        if (keep || window.size() >= WINDOW_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * @return kept positions in the original order
+     */
+    public List<Position> finish() {
+        flush();
+        return result;
+    }
+
+    /**
+     * Simplifies current window and leaves only its last position, which starts the next window
+     */
+    private void flush() {
+        int size = window.size();
+        if (size == 0) {
+            return;
+        }
+        if (result.isEmpty() || result.get(result.size() - 1) != window.get(0)) {
+            result.add(window.get(0));
+        }
+        if (size == 1) {
+            return;
+        }
+
+        boolean[] kept = new boolean[size];
+        kept[0] = true;
+        kept[size - 1] = true;
+        simplify(kept);
+
+        double distance = 0;
+        for (int i = 1; i < size; i++) {
+            Position position = window.get(i);
+            distance += position.getDistance();
+            if (kept[i]) {
+                position.setDistance(distance);
+                result.add(position);
+                distance = 0;
+            }
+        }
+
+        Position last = window.get(size - 1);
+        window.clear();
+        window.add(last);
+    }
+
+    private void simplify(boolean[] kept) {
+        int size = window.size();
+        double[] x = new double[size];
+        double[] y = new double[size];
+        double cos = Math.cos(Math.toRadians(window.get(0).getLatitude()));
+        for (int i = 0; i < size; i++) {
+            Position position = window.get(i);
+            x[i] = Math.toRadians(position.getLongitude()) * cos * EARTH_RADIUS;
+            y[i] = Math.toRadians(position.getLatitude()) * EARTH_RADIUS;
+        }
+
+        Deque<int[]> ranges = new ArrayDeque<int[]>();
+        ranges.push(new int[] { 0, size - 1 });
+        while (!ranges.isEmpty()) {
+            int[] range = ranges.pop();
+            int first = range[0];
+            int last = range[1];
+            double maxDistance = 0;
+            int index = -1;
+            for (int i = first + 1; i < last; i++) {
+                double distance = distance(x[i], y[i], x[first], y[first], x[last], y[last]);
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    index = i;
+                }
+            }
+            if (index >= 0 && maxDistance > tolerance) {
+                kept[index] = true;
+                ranges.push(new int[] { first, index });
+                ranges.push(new int[] { index, last });
+            }
+        }
+    }
+
+    /**
+     * @return distance from point (x, y) to the segment (x1, y1) - (x2, y2)
+     */
+    static double distance(double x, double y, double x1, double y1, double x2, double y2) {
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : ((x - x1) * dx + (y - y1) * dy) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        double px = x1 + t * dx - x;
+        double py = y1 + t * dy - y;
+        return Math.sqrt(px * px + py * py);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.server.model;
+
+import org.traccar.web.shared.model.Device;
+import org.traccar.web.shared.model.Position;
+import org.traccar.web.shared.model.Stop;
+import org.traccar.web.shared.model.Trip;
+import org.traccar.web.shared.model.TripSummary;
+
+/**
+ * Splits positions of device ordered by time into trips and stops.
+ *
+ * <p>Device is idle when its speed does not exceed {@link Device#getIdleSpeedThreshold()} or when it does not
+ * report positions. Idle period, which lasts at least {@link Device#getTimeout()} seconds, is a stop and it ends
+ * the current trip. Shorter idle periods (i.e. traffic lights) are part of the trip.</p>
+ */
+public class TripDetector {
+    private static final double KM_PER_NAUTICAL_MILE = 1.852;
+
+    private final double idleSpeedThreshold;
+    private final long timeout;
+    private final TripSummary summary = new TripSummary();
+
+    private Position previous;
+    private Trip trip;
+    private Position idleStart;
+    private double idleDistance;
+
+    public TripDetector(Device device) {
+        this.idleSpeedThreshold = device.getIdleSpeedThreshold();
+        this.timeout = device.getTimeout() * 1000L;
+    }
+
+    public void add(Position position) {
+        double step = 0;
+        if (previous != null) {
+            if (position.getTime().getTime() - previous.getTime().getTime() > timeout && idleStart == null) {
+                // there were no positions for a long time
+                idleStart = previous;
+                idleDistance = 0;
+            }
+            step = distance(previous, position);
+            if (trip != null) {
+                trip.setDistance(trip.getDistance() + step);
+                if (idleStart != null) {
+                    idleDistance += step;
+                }
+            }
+        }
+
+        if (position.getSpeed() != null && position.getSpeed() > idleSpeedThreshold) {
+            if (idleStart != null) {
+                if (position.getTime().getTime() - idleStart.getTime().getTime() >= timeout) {
+                    endTrip();
+                    addStop(position);
+                }
+                idleStart = null;
+                idleDistance = 0;
+            }
+            if (trip == null) {
+                trip = new Trip();
+                // distance from the last idle position is part of the trip
+                trip.setDistance(step);
+                trip.setStart(position.getTime());
+                trip.setStartLatitude(position.getLatitude());
+                trip.setStartLongitude(position.getLongitude());
+            }
+            trip.setEnd(position.getTime());
+            trip.setEndLatitude(position.getLatitude());
+            trip.setEndLongitude(position.getLongitude());
+            trip.setMaxSpeed(Math.max(trip.getMaxSpeed(), position.getSpeed()));
+        } else if (idleStart == null) {
+            idleStart = position;
+            idleDistance = 0;
+        }
+
+        previous = position;
+    }
+
+    /**
+     * Ends the last trip or stop
+     */
+    public TripSummary finish() {
+        if (idleStart != null && (trip == null || previous.getTime().getTime() - idleStart.getTime().getTime() >= timeout)) {
+            endTrip();
+            addStop(previous);
+        } else if (trip != null) {
+            trip.setDistance(trip.getDistance() - idleDistance);
+            addTrip();
+        }
+        return summary;
+    }
+
+    /**
+     * Ends the current trip at the position where device became idle
+     */
+    private void endTrip() {
+        if (trip != null) {
+            trip.setDistance(trip.getDistance() - idleDistance);
+            trip.setEnd(idleStart.getTime());
+            trip.setEndLatitude(idleStart.getLatitude());
+            trip.setEndLongitude(idleStart.getLongitude());
+            addTrip();
+        }
+    }
+
+    private void addTrip() {
+        long duration = trip.getEnd().getTime() - trip.getStart().getTime();
+        if (duration > 0) {
+            trip.setAverageSpeed(trip.getDistance() / KM_PER_NAUTICAL_MILE / (duration / 3600000d));
+        }
+        summary.getTrips().add(trip);
+        summary.setDistance(summary.getDistance() + trip.getDistance());
+        summary.setMovingTime(summary.getMovingTime() + duration);
+        trip = null;
+    }
+
+    private void addStop(Position end) {
+        Stop stop = new Stop();
+        stop.setStart(idleStart.getTime());
+        stop.setEnd(end.getTime());
+        stop.setLatitude(idleStart.getLatitude());
+        stop.setLongitude(idleStart.getLongitude());
+        summary.getStops().add(stop);
+        summary.setStoppedTime(summary.getStoppedTime() + end.getTime().getTime() - idleStart.getTime().getTime());
+    }
+
+    private static double distance(Position from, Position to) {
+        if (from.getLatitude() == null || from.getLongitude() == null || to.getLatitude() == null || to.getLongitude() == null) {
+            return 0;
+        }
+        return GeoFenceCalculator.getDistance(from.getLongitude(), from.getLatitude(), to.getLongitude(), to.getLatitude());
+    }
+}
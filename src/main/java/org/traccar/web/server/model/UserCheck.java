@@ -18,14 +18,13 @@ package org.traccar.web.server.model;
 import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
 import org.traccar.web.shared.model.ApplicationSettings;
-import org.traccar.web.shared.model.User;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
 
 public class UserCheck implements MethodInterceptor {
     @Inject
-    private Provider<User> sessionUser;
+    private Provider<UserRoles> sessionUserRoles;
     @Inject
     private Provider<ApplicationSettings> applicationSettings;
 
@@ -64,23 +63,23 @@ public class UserCheck implements MethodInterceptor {
             }
         }
 
-        User user = sessionUser.get();
-        if (user == null) {
+        UserRoles roles = sessionUserRoles.get();
+        if (roles == null) {
             throw new SecurityException("Not logged in");
         }
         if (requireUser.roles().length > 0) {
-            StringBuilder roles = new StringBuilder();
+            StringBuilder requiredRoles = new StringBuilder();
             for (Role role : requireUser.roles()) {
-                if (roles.length() > 0) {
-                    roles.append(" or ");
+                if (requiredRoles.length() > 0) {
+                    requiredRoles.append(" or ");
                 }
-                roles.append(role.toString());
-                if (role.has(user)) {
+                requiredRoles.append(role.toString());
+                if (role.has(roles)) {
                     rolesChecked.set(requireUser.roles());
                     return;
                 }
             }
-            throw new SecurityException("User must have " + roles + " role");
+            throw new SecurityException("User must have " + requiredRoles + " role");
         } else {
             rolesChecked.set(requireUser.roles());
         }
@@ -91,11 +90,11 @@ public class UserCheck implements MethodInterceptor {
         if (checkedDeviceManagement.get() != null) {
             return;
         }
-        User user = sessionUser.get();
-        if (user == null) {
+        UserRoles roles = sessionUserRoles.get();
+        if (roles == null) {
             throw new SecurityException("Not logged in");
         }
-        if (!user.getAdmin() && !user.getManager()) {
+        if (!roles.isAdmin() && !roles.isManager()) {
             if (applicationSettings.get().isDisallowDeviceManagementByUsers()) {
                 throw new SecurityException("Users are not allowed to manage devices");
             }
@@ -108,11 +107,11 @@ public class UserCheck implements MethodInterceptor {
         if (checkedRequireWrite.get() != null) {
             return;
         }
-        User user = sessionUser.get();
-        if (user == null) {
+        UserRoles roles = sessionUserRoles.get();
+        if (roles == null) {
             throw new SecurityException("Not logged in");
         }
-        if (user.getReadOnly()) {
+        if (roles.isReadOnly()) {
             throw new SecurityException("User is not allowed to make any changes");
         }
         checkedRequireWrite.set(Boolean.TRUE);
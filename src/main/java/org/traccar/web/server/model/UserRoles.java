@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.server.model;
+
+import org.traccar.web.shared.model.User;
+
+import java.io.Serializable;
+
+/**
+ * Immutable snapshot of user's roles and flags used for authorization checks
+ */
+public final class UserRoles implements Serializable {
+    private static final long serialVersionUID = 1;
+
+    private final long userId;
+    private final boolean admin;
+    private final boolean manager;
+    private final boolean readOnly;
+
+    public UserRoles(long userId, boolean admin, boolean manager, boolean readOnly) {
+        this.userId = userId;
+        this.admin = admin;
+        this.manager = manager;
+        this.readOnly = readOnly;
+    }
+
+    public static UserRoles of(User user) {
+        return user == null ? null : new UserRoles(user.getId(), user.getAdmin(), user.getManager(), user.getReadOnly());
+    }
+
+    public long getUserId() {
+        return userId;
+    }
+
+    public boolean isAdmin() {
+        return admin;
+    }
+
+    public boolean isManager() {
+        return manager;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+}
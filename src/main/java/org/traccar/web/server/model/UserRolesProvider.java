@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.server.model;
+
+import org.traccar.web.shared.model.User;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Provides roles of the current user from snapshot stored in HTTP session, so authorization checks
+ * do not need to load user from database.
+ *
+ * <p>Snapshot is taken again when roles of any user are changed by this application instance
+ * (see {@link #invalidate()}) or when it is older than {@link #MAX_AGE} to see changes made by other
+ * instances.</p>
+ */
+@Singleton
+public class UserRolesProvider implements Provider<UserRoles> {
+    static final String ATTRIBUTE_USER_ROLES = "traccar.user.roles";
+    static final long MAX_AGE = 60 * 1000;
+
+    private static class Snapshot implements Serializable {
+        private static final long serialVersionUID = 1;
+
+        final UserRoles roles;
+        final long version;
+        final long time;
+
+        Snapshot(UserRoles roles, long version, long time) {
+            this.roles = roles;
+            this.version = version;
+            this.time = time;
+        }
+    }
+
+    @Inject
+    private Provider<HttpServletRequest> request;
+    @Inject
+    private Provider<User> sessionUser;
+
+    private final AtomicLong version = new AtomicLong();
+
+    @Override
+    public UserRoles get() {
+        HttpSession session = request.get().getSession();
+        Long userId = (Long) session.getAttribute(CurrentUserProvider.ATTRIBUTE_USER_ID);
+        if (userId == null) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        Object attribute = session.getAttribute(ATTRIBUTE_USER_ROLES);
+        if (attribute instanceof Snapshot) {
+            Snapshot snapshot = (Snapshot) attribute;
+            if (snapshot.roles.getUserId() == userId && snapshot.version == version.get() && now - snapshot.time < MAX_AGE) {
+                return snapshot.roles;
+            }
+        }
+
+        long currentVersion = version.get();
+        UserRoles roles = UserRoles.of(sessionUser.get());
+        if (roles != null) {
+            session.setAttribute(ATTRIBUTE_USER_ROLES, new Snapshot(roles, currentVersion, now));
+        }
+        return roles;
+    }
+
+    /**
+     * Makes all snapshots outdated, must be called when roles or flags of users are changed
+     */
+    public void invalidate() {
+        version.incrementAndGet();
+    }
+}
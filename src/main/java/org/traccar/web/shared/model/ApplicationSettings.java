@@ -94,6 +94,35 @@ public class ApplicationSettings implements Serializable {
 
     private String language;
 
+    /**
+     * Number of days positions and events are kept, 0 means forever
+     */
+    @Expose
+    @Column(nullable = true)
+    private int retentionDays;
+
+    public int getRetentionDays() {
+        return retentionDays;
+    }
+
+    public void setRetentionDays(int retentionDays) {
+        this.retentionDays = retentionDays;
+    }
+
+    /**
+     * Incremented on each change of settings, used to find out whether cached copy is up to date
+     */
+    @Column(nullable = true)
+    private long version;
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     public String getLanguage() {
         return language;
     }
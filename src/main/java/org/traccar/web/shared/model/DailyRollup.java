@@ -0,0 +1,32 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.shared.model;
+
+import javax.persistence.*;
+
+/**
+ * Positions of device aggregated by UTC day from hourly rollups
+ */
+@Entity
+@Table(name = "rollups_daily",
+       indexes = { @Index(name="rollups_daily_device_time", columnList="device_id,time", unique = true) })
+@AssociationOverride(name = "device", joinColumns = @JoinColumn(foreignKey = @ForeignKey(name = "rollups_daily_fkey_device_id")))
+public class DailyRollup extends PositionRollup {
+    private static final long serialVersionUID = 1;
+
+    public DailyRollup() {
+    }
+}
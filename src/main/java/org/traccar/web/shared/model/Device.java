@@ -43,6 +43,7 @@ public class Device implements Serializable {
         timeout = device.timeout;
         idleSpeedThreshold = device.idleSpeedThreshold;
         iconType = device.iconType;
+        retentionDays = device.retentionDays;
     }
 
     @Expose
@@ -137,6 +138,21 @@ public class Device implements Serializable {
         this.idleSpeedThreshold = idleSpeedThreshold;
     }
 
+    /**
+     * Number of days positions and events are kept, 0 means that global setting is used
+     */
+    @Expose
+    @Column(nullable = true)
+    private int retentionDays;
+
+    public int getRetentionDays() {
+        return retentionDays;
+    }
+
+    public void setRetentionDays(int retentionDays) {
+        this.retentionDays = retentionDays;
+    }
+
     // Hibernate bug HHH-8783: (http://hibernate.atlassian.net/browse/HHH-8783)
     //     ForeignKey(name) has no effect in JoinTable (and others).  It is
     //     reported as closed but the comments indicate it is still not fixed
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.shared.model;
+
+import com.google.gson.annotations.Expose;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Changes of latest positions since some version.
+ *
+ * <p>Version is the identifier of the newest latest position known to the client. When <code>full</code>
+ * flag is set the list of positions contains all latest positions available to the user and client must
+ * drop everything it knows about latest positions of other devices.</p>
+ */
+public class LatestPositions implements Serializable {
+    private static final long serialVersionUID = 1;
+
+    public LatestPositions() {
+        positions = new ArrayList<Position>();
+        removedDeviceIds = new ArrayList<Long>();
+    }
+
+    @Expose
+    private long version;
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    @Expose
+    private boolean full;
+
+    public boolean isFull() {
+        return full;
+    }
+
+    public void setFull(boolean full) {
+        this.full = full;
+    }
+
+    @Expose
+    private List<Position> positions;
+
+    public List<Position> getPositions() {
+        return positions;
+    }
+
+    public void setPositions(List<Position> positions) {
+        this.positions = positions;
+    }
+
+    @Expose
+    private List<Long> removedDeviceIds;
+
+    public List<Long> getRemovedDeviceIds() {
+        return removedDeviceIds;
+    }
+
+    public void setRemovedDeviceIds(List<Long> removedDeviceIds) {
+        this.removedDeviceIds = removedDeviceIds;
+    }
+}
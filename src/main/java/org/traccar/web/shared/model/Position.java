@@ -66,6 +66,8 @@ public class Position implements Serializable, Cloneable {
         power = position.power;
         address = position.address;
         other = position.other;
+        stepDistance = position.stepDistance;
+        cumulativeDistance = position.cumulativeDistance;
     }
 
     @Expose
@@ -78,6 +80,10 @@ public class Position implements Serializable, Cloneable {
         return id;
     }
 
+    public void setId(long id) {
+        this.id = id;
+    }
+
     @Expose
     @ManyToOne(fetch = FetchType.EAGER)
     @JoinColumn(foreignKey = @ForeignKey(name = "positions_fkey_device_id"))
@@ -235,6 +241,38 @@ public class Position implements Serializable, Cloneable {
         this.idleSince = idleSince;
     }
 
+    /**
+     * Distance in kilometers from the previous position of device by time, <code>null</code> until it is
+     * calculated in background
+     */
+    @GwtTransient
+    @Column(nullable = true)
+    private Double stepDistance;
+
+    public Double getStepDistance() {
+        return stepDistance;
+    }
+
+    public void setStepDistance(Double stepDistance) {
+        this.stepDistance = stepDistance;
+    }
+
+    /**
+     * Total distance in kilometers from the first position of device, <code>null</code> until it is
+     * calculated in background
+     */
+    @GwtTransient
+    @Column(nullable = true)
+    private Double cumulativeDistance;
+
+    public Double getCumulativeDistance() {
+        return cumulativeDistance;
+    }
+
+    public void setCumulativeDistance(Double cumulativeDistance) {
+        this.cumulativeDistance = cumulativeDistance;
+    }
+
     @Transient
     private double distance;
 
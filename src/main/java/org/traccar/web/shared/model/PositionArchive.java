@@ -0,0 +1,313 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.shared.model;
+
+import com.google.gson.annotations.Expose;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Archive positions of single device stored column by column.
+ *
+ * <p>Identifiers, times, coordinates, speed, course and altitude are stored as differences from the
+ * previous position, scaled to integers. Identifier or time difference, which does not fit into integer, is
+ * stored as {@link #JUMP} and the full value is taken from {@link #getIdJumps()} or {@link #getTimeJumps()}.
+ * Missing values are marked in {@link #getNulls()} bitmap, which has {@link #NULLABLE_COLUMNS} bits per
+ * position, and stored as zeros (differences of missing values are zeros too). Valid flag, power, address
+ * and other attributes are sent only on request.</p>
+ */
+public class PositionArchive implements Serializable {
+    private static final long serialVersionUID = 1;
+
+    public static final double COORDINATE_SCALE = 1000000;
+    public static final double SPEED_SCALE = 100;
+    public static final double COURSE_SCALE = 10;
+    public static final double ALTITUDE_SCALE = 10;
+    /**
+     * Distances are stored in centimeters
+     */
+    public static final double DISTANCE_SCALE = 100000;
+    public static final int JUMP = Integer.MIN_VALUE;
+
+    public static final int LATITUDE = 0;
+    public static final int LONGITUDE = 1;
+    public static final int SPEED = 2;
+    public static final int COURSE = 3;
+    public static final int ALTITUDE = 4;
+    public static final int VALID = 5;
+    public static final int POWER = 6;
+    public static final int NULLABLE_COLUMNS = 7;
+
+    @Expose
+    private Device device;
+    @Expose
+    private int count;
+    @Expose
+    private long firstId;
+    @Expose
+    private long firstTime;
+    @Expose
+    private int[] ids;
+    @Expose
+    private long[] idJumps;
+    @Expose
+    private int[] times;
+    @Expose
+    private long[] timeJumps;
+    @Expose
+    private int[] latitudes;
+    @Expose
+    private int[] longitudes;
+    @Expose
+    private int[] speeds;
+    @Expose
+    private int[] courses;
+    @Expose
+    private int[] altitudes;
+    @Expose
+    private int[] distances;
+    @Expose
+    private boolean[] valid;
+    @Expose
+    private double[] power;
+    @Expose
+    private String[] addresses;
+    @Expose
+    private String[] other;
+    @Expose
+    private int[] nulls;
+
+    public Device getDevice() {
+        return device;
+    }
+
+    public void setDevice(Device device) {
+        this.device = device;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public long getFirstId() {
+        return firstId;
+    }
+
+    public void setFirstId(long firstId) {
+        this.firstId = firstId;
+    }
+
+    public long getFirstTime() {
+        return firstTime;
+    }
+
+    public void setFirstTime(long firstTime) {
+        this.firstTime = firstTime;
+    }
+
+    public int[] getIds() {
+        return ids;
+    }
+
+    public void setIds(int[] ids) {
+        this.ids = ids;
+    }
+
+    public long[] getIdJumps() {
+        return idJumps;
+    }
+
+    public void setIdJumps(long[] idJumps) {
+        this.idJumps = idJumps;
+    }
+
+    public int[] getTimes() {
+        return times;
+    }
+
+    public void setTimes(int[] times) {
+        this.times = times;
+    }
+
+    public long[] getTimeJumps() {
+        return timeJumps;
+    }
+
+    public void setTimeJumps(long[] timeJumps) {
+        this.timeJumps = timeJumps;
+    }
+
+    public int[] getLatitudes() {
+        return latitudes;
+    }
+
+    public void setLatitudes(int[] latitudes) {
+        this.latitudes = latitudes;
+    }
+
+    public int[] getLongitudes() {
+        return longitudes;
+    }
+
+    public void setLongitudes(int[] longitudes) {
+        this.longitudes = longitudes;
+    }
+
+    public int[] getSpeeds() {
+        return speeds;
+    }
+
+    public void setSpeeds(int[] speeds) {
+        this.speeds = speeds;
+    }
+
+    public int[] getCourses() {
+        return courses;
+    }
+
+    public void setCourses(int[] courses) {
+        this.courses = courses;
+    }
+
+    public int[] getAltitudes() {
+        return altitudes;
+    }
+
+    public void setAltitudes(int[] altitudes) {
+        this.altitudes = altitudes;
+    }
+
+    public int[] getDistances() {
+        return distances;
+    }
+
+    public void setDistances(int[] distances) {
+        this.distances = distances;
+    }
+
+    public boolean[] getValid() {
+        return valid;
+    }
+
+    public void setValid(boolean[] valid) {
+        this.valid = valid;
+    }
+
+    public double[] getPower() {
+        return power;
+    }
+
+    public void setPower(double[] power) {
+        this.power = power;
+    }
+
+    public String[] getAddresses() {
+        return addresses;
+    }
+
+    public void setAddresses(String[] addresses) {
+        this.addresses = addresses;
+    }
+
+    public String[] getOther() {
+        return other;
+    }
+
+    public void setOther(String[] other) {
+        this.other = other;
+    }
+
+    /**
+     * @return bitmap of missing values, <code>null</code> if there are no missing values
+     */
+    public int[] getNulls() {
+        return nulls;
+    }
+
+    public void setNulls(int[] nulls) {
+        this.nulls = nulls;
+    }
+
+    /**
+     * @return whether value of column is missing in position with the specified index
+     */
+    public boolean isNull(int index, int column) {
+        if (nulls == null) {
+            return false;
+        }
+        int bit = index * NULLABLE_COLUMNS + column;
+        return (nulls[bit >>> 5] & (1 << (bit & 31))) != 0;
+    }
+
+    /**
+     * Restores positions, all of them refer to the device from header
+     */
+    public List<Position> decode() {
+        List<Position> positions = new ArrayList<Position>(count);
+        long id = firstId;
+        long time = firstTime;
+        int idJump = 0;
+        int timeJump = 0;
+        int latitude = 0;
+        int longitude = 0;
+        int speed = 0;
+        int course = 0;
+        int altitude = 0;
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                id = ids[i] == JUMP ? idJumps[idJump++] : id + ids[i];
+                time = times[i] == JUMP ? timeJumps[timeJump++] : time + times[i];
+            }
+            latitude += latitudes[i];
+            longitude += longitudes[i];
+            speed += speeds[i];
+            course += courses[i];
+            altitude += altitudes[i];
+
+            Position position = new Position();
+            position.setId(id);
+            position.setDevice(device);
+            position.setTime(new Date(time));
+            position.setLatitude(isNull(i, LATITUDE) ? null : latitude / COORDINATE_SCALE);
+            position.setLongitude(isNull(i, LONGITUDE) ? null : longitude / COORDINATE_SCALE);
+            position.setSpeed(isNull(i, SPEED) ? null : speed / SPEED_SCALE);
+            position.setCourse(isNull(i, COURSE) ? null : course / COURSE_SCALE);
+            position.setAltitude(isNull(i, ALTITUDE) ? null : altitude / ALTITUDE_SCALE);
+            position.setDistance(distances[i] / DISTANCE_SCALE);
+            if (valid != null && !isNull(i, VALID)) {
+                position.setValid(valid[i]);
+            }
+            if (power != null && !isNull(i, POWER)) {
+                position.setPower(power[i]);
+            }
+            if (addresses != null) {
+                position.setAddress(addresses[i]);
+            }
+            if (other != null) {
+                position.setOther(other[i]);
+            }
+            positions.add(position);
+        }
+        return positions;
+    }
+}
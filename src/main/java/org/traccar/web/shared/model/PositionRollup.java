@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.shared.model;
+
+import com.google.gson.annotations.Expose;
+import com.google.gwt.user.client.rpc.GwtTransient;
+
+import javax.persistence.*;
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Aggregated positions of device within period of time, distance is in kilometers, speed is in knots,
+ * moving time is in milliseconds.
+ *
+ * <p>Distance of position from the previous one and time passed since it belong to the period of position.</p>
+ */
+@MappedSuperclass
+public class PositionRollup implements Serializable {
+    private static final long serialVersionUID = 1;
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "id", nullable = false, updatable = false, unique = true)
+    private long id;
+
+    @GwtTransient
+    @ManyToOne(fetch = FetchType.LAZY)
+    private Device device;
+
+    @Expose
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date time;
+
+    @Expose
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date endTime;
+
+    @Expose
+    private long firstPositionId;
+
+    @Expose
+    private long lastPositionId;
+
+    @Expose
+    private double distance;
+
+    @Expose
+    private double maxSpeed;
+
+    @Expose
+    private long movingTime;
+
+    @Expose
+    private int pointCount;
+
+    public PositionRollup() {
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Device getDevice() {
+        return device;
+    }
+
+    public void setDevice(Device device) {
+        this.device = device;
+    }
+
+    /**
+     * @return start of period
+     */
+    public Date getTime() {
+        return time;
+    }
+
+    public void setTime(Date time) {
+        this.time = time;
+    }
+
+    /**
+     * @return end of period, exclusive
+     */
+    public Date getEndTime() {
+        return endTime;
+    }
+
+    public void setEndTime(Date endTime) {
+        this.endTime = endTime;
+    }
+
+    public long getFirstPositionId() {
+        return firstPositionId;
+    }
+
+    public void setFirstPositionId(long firstPositionId) {
+        this.firstPositionId = firstPositionId;
+    }
+
+    public long getLastPositionId() {
+        return lastPositionId;
+    }
+
+    public void setLastPositionId(long lastPositionId) {
+        this.lastPositionId = lastPositionId;
+    }
+
+    public double getDistance() {
+        return distance;
+    }
+
+    public void setDistance(double distance) {
+        this.distance = distance;
+    }
+
+    public double getMaxSpeed() {
+        return maxSpeed;
+    }
+
+    public void setMaxSpeed(double maxSpeed) {
+        this.maxSpeed = maxSpeed;
+    }
+
+    public long getMovingTime() {
+        return movingTime;
+    }
+
+    public void setMovingTime(long movingTime) {
+        this.movingTime = movingTime;
+    }
+
+    public int getPointCount() {
+        return pointCount;
+    }
+
+    public void setPointCount(int pointCount) {
+        this.pointCount = pointCount;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.shared.model;
+
+import com.google.gson.annotations.Expose;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Trips and stops of device within some period, distance is in kilometers, times are in milliseconds
+ */
+public class TripSummary implements Serializable {
+    private static final long serialVersionUID = 1;
+
+    public TripSummary() {
+        trips = new ArrayList<Trip>();
+        stops = new ArrayList<Stop>();
+    }
+
+    @Expose
+    private List<Trip> trips;
+
+    public List<Trip> getTrips() {
+        return trips;
+    }
+
+    public void setTrips(List<Trip> trips) {
+        this.trips = trips;
+    }
+
+    @Expose
+    private List<Stop> stops;
+
+    public List<Stop> getStops() {
+        return stops;
+    }
+
+    public void setStops(List<Stop> stops) {
+        this.stops = stops;
+    }
+
+    @Expose
+    private double distance;
+
+    public double getDistance() {
+        return distance;
+    }
+
+    public void setDistance(double distance) {
+        this.distance = distance;
+    }
+
+    @Expose
+    private long movingTime;
+
+    public long getMovingTime() {
+        return movingTime;
+    }
+
+    public void setMovingTime(long movingTime) {
+        this.movingTime = movingTime;
+    }
+
+    @Expose
+    private long stoppedTime;
+
+    public long getStoppedTime() {
+        return stoppedTime;
+    }
+
+    public void setStoppedTime(long stoppedTime) {
+        this.stoppedTime = stoppedTime;
+    }
+}
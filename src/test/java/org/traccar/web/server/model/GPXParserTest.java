@@ -19,7 +19,10 @@ import org.junit.Test;
 import org.traccar.web.shared.model.Position;
 
 import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
 import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
 
 import static org.junit.Assert.*;
 
@@ -101,4 +104,54 @@ public class GPXParserTest {
         assertNull(p.getSpeed());
         assertEquals("<info><protocol>gpx_import</protocol><Primary_ID>PID4</Primary_ID><Secondary_ID>SID4</Secondary_ID><additional-a>X</additional-a><additional-b>Y</additional-b><type>import_start</type></info>", p.getOther());
     }
+
+    @Test
+    public void testStreaming() throws XMLStreamException, ParseException {
+        StringBuilder gpx = new StringBuilder("<gpx><trk><trkseg>");
+        for (int i = 0; i < 10000; i++) {
+            gpx.append("<trkpt lat=\"").append(i * 0.001).append("\" lon=\"1\"><time>2015-01-01T")
+                    .append(String.format("%02d:%02d:%02d", i / 3600, i / 60 % 60, i % 60))
+                    .append("Z</time><extensions><a><b>").append(i).append("</b></a></extensions></trkpt>");
+        }
+        gpx.append("</trkseg></trk></gpx>");
+
+        final List<Position> positions = new ArrayList<Position>();
+        int count = new GPXParser().parse(new ByteArrayInputStream(gpx.toString().getBytes()), null, new GPXParser.PositionHandler() {
+            @Override
+            public void handle(Position position) {
+                positions.add(position);
+            }
+        });
+
+        assertEquals(10000, count);
+        assertEquals(10000, positions.size());
+        for (int i = 0; i < positions.size(); i++) {
+            Position p = positions.get(i);
+            assertEquals(1420070400000L + i * 1000L, p.getTime().getTime());
+            assertEquals(i * 0.001, p.getLatitude(), 0.0000001);
+            assertEquals("<info><protocol>gpx_import</protocol><a-b>" + i + "</a-b><type>import" + (i == 0 ? "_start" : i == positions.size() - 1 ? "_end" : "") + "</type></info>", p.getOther());
+        }
+    }
+
+    @Test
+    public void testParseTime() throws ParseException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            long time = (long) (random.nextDouble() * 4000000000000L) - 1000000000000L;
+            assertEquals(time, GPXParser.parseTime(format.format(new Date(time))));
+        }
+        assertEquals(1420096479000L, GPXParser.parseTime("2015-01-01T07:14:39Z"));
+        assertEquals(1420096479500L, GPXParser.parseTime("2015-01-01T07:14:39.5Z"));
+        assertEquals(1420096479000L, GPXParser.parseTime("2015-01-01T09:14:39+02:00"));
+        assertEquals(1420096479000L, GPXParser.parseTime("2015-01-01T06:44:39-00:30"));
+        for (String invalid : new String[] { "2015-01-01", "2015-01-01T07:14:39", "2015-01-01T07:14:39.Z", "2015-13-01T07:14:39Z", "2015-01-01 07:14:39Z" }) {
+            try {
+                GPXParser.parseTime(invalid);
+                fail("Parsed invalid date: " + invalid);
+            } catch (ParseException expected) {
+            }
+        }
+    }
 }
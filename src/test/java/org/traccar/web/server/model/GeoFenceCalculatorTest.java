@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.server.model;
+
+import org.junit.Test;
+import org.traccar.web.shared.model.GeoFence;
+import org.traccar.web.shared.model.GeoFenceType;
+import org.traccar.web.shared.model.Position;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class GeoFenceCalculatorTest {
+    @Test
+    public void testFindContainingMatchesFullScan() {
+        Random random = new Random(1);
+        List<GeoFence> geoFences = new ArrayList<GeoFence>();
+        for (int i = 0; i < 300; i++) {
+            double lon = 10 + random.nextDouble();
+            double lat = 50 + random.nextDouble();
+            GeoFence geoFence = new GeoFence(i, "fence" + i);
+            geoFence.setAllDevices(true);
+            switch (i % 3) {
+                case 0:
+                    geoFence.setType(GeoFenceType.POLYGON);
+                    geoFence.points(new GeoFence.LonLat(lon, lat),
+                            new GeoFence.LonLat(lon + 0.03, lat + 0.01),
+                            new GeoFence.LonLat(lon + 0.01, lat + 0.04));
+                    break;
+                case 1:
+                    geoFence.setType(GeoFenceType.CIRCLE);
+                    geoFence.points(new GeoFence.LonLat(lon, lat));
+                    geoFence.setRadius(500 + random.nextInt(3000));
+                    break;
+                case 2:
+                    geoFence.setType(GeoFenceType.LINE);
+                    geoFence.points(new GeoFence.LonLat(lon, lat), new GeoFence.LonLat(lon + 0.05, lat - 0.02));
+                    geoFence.setRadius(200 + random.nextInt(1000));
+                    break;
+            }
+            geoFences.add(geoFence);
+        }
+        // big polygon, which is not put into the grid
+        GeoFence big = new GeoFence(1000, "big");
+        big.setAllDevices(true);
+        big.setType(GeoFenceType.POLYGON);
+        big.points(new GeoFence.LonLat(9, 49), new GeoFence.LonLat(12, 49), new GeoFence.LonLat(12, 50.5), new GeoFence.LonLat(9, 50.5));
+        geoFences.add(big);
+
+        GeoFenceCalculator calculator = new GeoFenceCalculator(geoFences);
+        int found = 0;
+        for (int i = 0; i < 5000; i++) {
+            Position position = new Position();
+            position.setLongitude(9.9 + random.nextDouble() * 1.2);
+            position.setLatitude(49.9 + random.nextDouble() * 1.2);
+
+            Set<GeoFence> expected = new HashSet<GeoFence>();
+            for (GeoFence geoFence : geoFences) {
+                if (calculator.contains(geoFence, position)) {
+                    expected.add(geoFence);
+                }
+            }
+            List<GeoFence> actual = calculator.findContaining(position);
+            assertEquals(expected, new HashSet<GeoFence>(actual));
+            assertEquals(expected.size(), actual.size());
+            found += actual.size();
+        }
+        assertTrue(found > 0);
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.server.model;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.traccar.web.shared.model.NotificationSettings;
+import org.traccar.web.shared.model.User;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class NotificationDispatcherTest {
+    /**
+     * Minimal SMTP server, which accepts all messages
+     */
+    static class SmtpStub implements Runnable {
+        final ServerSocket serverSocket;
+        final AtomicInteger connections = new AtomicInteger();
+        final AtomicInteger messages = new AtomicInteger();
+        /**
+         * Number of messages to reject with temporary error
+         */
+        final AtomicInteger failures = new AtomicInteger();
+
+        SmtpStub() throws IOException {
+            serverSocket = new ServerSocket(0);
+            Thread thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            handle(socket);
+                        }
+                    });
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        void handle(Socket socket) {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+                Writer writer = new OutputStreamWriter(socket.getOutputStream(), "US-ASCII");
+                reply(writer, "220 localhost");
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String command = line.length() < 4 ? line : line.substring(0, 4).toUpperCase();
+                    if (command.equals("MAIL") && failures.getAndDecrement() > 0) {
+                        reply(writer, "451 try again later");
+                    } else if (command.equals("DATA")) {
+                        reply(writer, "354 go ahead");
+                        while ((line = reader.readLine()) != null && !line.equals(".")) {
+                        }
+                        messages.incrementAndGet();
+                        reply(writer, "250 accepted");
+                    } else if (command.equals("QUIT")) {
+                        reply(writer, "221 bye");
+                        break;
+                    } else {
+                        reply(writer, "250 OK");
+                    }
+                }
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        static void reply(Writer writer, String reply) throws IOException {
+            writer.write(reply + "\r\n");
+            writer.flush();
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * Remembers events marked as sent instead of updating database
+     */
+    static class TestDispatcher extends NotificationDispatcher {
+        final List<Long> sentEventIds = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch latch;
+
+        TestDispatcher(int notifications) {
+            latch = new CountDownLatch(notifications);
+            logger = Logger.getLogger(NotificationDispatcher.class.getName());
+            backoff = 10;
+        }
+
+        @Override
+        void markAsSent(List<Long> eventIds) {
+            sentEventIds.addAll(eventIds);
+        }
+
+        @Override
+        void send(Notification notification, int attempt) {
+            super.send(notification, attempt);
+            if (!isInFlight(notification.eventIds.get(0))) {
+                latch.countDown();
+            }
+        }
+    }
+
+    SmtpStub smtp;
+    NotificationSettings settings;
+
+    @Before
+    public void start() throws IOException {
+        smtp = new SmtpStub();
+        settings = new NotificationSettings();
+        settings.setServer("localhost");
+        settings.setPort(smtp.getPort());
+        settings.setUseAuthorization(false);
+        settings.setSecureConnectionType(NotificationSettings.SecureConnectionType.NONE);
+        settings.setFromAddress("traccar@localhost");
+    }
+
+    @After
+    public void stop() throws IOException {
+        smtp.close();
+    }
+
+    static NotificationDispatcher.Notification notification(NotificationSettings settings, long eventId) {
+        User user = new User();
+        user.setLogin("user" + eventId);
+        user.setEmail("user" + eventId + "@localhost");
+        return new NotificationDispatcher.Notification(settings, user, "subject", "body", Arrays.asList(eventId));
+    }
+
+    @Test
+    public void testConnectionReuse() throws Exception {
+        TestDispatcher dispatcher = new TestDispatcher(20);
+        for (long i = 0; i < 20; i++) {
+            assertTrue(dispatcher.dispatch(notification(settings, i)));
+        }
+        assertTrue(dispatcher.latch.await(10, TimeUnit.SECONDS));
+        dispatcher.shutdown();
+
+        assertEquals(20, smtp.messages.get());
+        assertEquals(20, dispatcher.sentEventIds.size());
+        // no more than one connection per worker thread
+        assertTrue(smtp.connections.get() <= NotificationDispatcher.POOL_SIZE);
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        smtp.failures.set(NotificationDispatcher.MAX_ATTEMPTS - 1);
+        TestDispatcher dispatcher = new TestDispatcher(1);
+        dispatcher.dispatch(notification(settings, 1));
+        assertTrue(dispatcher.latch.await(10, TimeUnit.SECONDS));
+        dispatcher.shutdown();
+
+        assertEquals(1, smtp.messages.get());
+        assertEquals(Arrays.asList(1L), dispatcher.sentEventIds);
+        assertFalse(dispatcher.isInFlight(1));
+    }
+
+    @Test
+    public void testGiveUp() throws Exception {
+        smtp.failures.set(NotificationDispatcher.MAX_ATTEMPTS);
+        TestDispatcher dispatcher = new TestDispatcher(1);
+        dispatcher.dispatch(notification(settings, 1));
+        assertTrue(dispatcher.latch.await(10, TimeUnit.SECONDS));
+        dispatcher.shutdown();
+
+        assertEquals(0, smtp.messages.get());
+        assertTrue(dispatcher.sentEventIds.isEmpty());
+        assertFalse(dispatcher.isInFlight(1));
+    }
+
+    @Test
+    public void testDispatchAllOrNothing() throws Exception {
+        final CountDownLatch gate = new CountDownLatch(1);
+        TestDispatcher dispatcher = new TestDispatcher(1 + NotificationDispatcher.MAX_PENDING) {
+            @Override
+            void send(Notification notification, int attempt) {
+                try {
+                    gate.await();
+                } catch (InterruptedException ignored) {
+                }
+                super.send(notification, attempt);
+            }
+        };
+        assertTrue(dispatcher.dispatch(notification(settings, 0)));
+
+        List<NotificationDispatcher.Notification> batch = new ArrayList<NotificationDispatcher.Notification>();
+        for (long i = 1; i <= NotificationDispatcher.MAX_PENDING; i++) {
+            batch.add(notification(settings, i));
+        }
+        // does not fit together with pending notification, so none of them is dispatched
+        assertFalse(dispatcher.dispatch(batch));
+        for (long i = 1; i <= NotificationDispatcher.MAX_PENDING; i++) {
+            assertFalse(dispatcher.isInFlight(i));
+        }
+
+        gate.countDown();
+        while (dispatcher.isInFlight(0)) {
+            Thread.sleep(10);
+        }
+        // nothing is pending, so even the largest batch is accepted
+        assertTrue(dispatcher.dispatch(batch));
+        assertTrue(dispatcher.latch.await(30, TimeUnit.SECONDS));
+        dispatcher.shutdown();
+
+        assertEquals(1 + NotificationDispatcher.MAX_PENDING, dispatcher.sentEventIds.size());
+    }
+}
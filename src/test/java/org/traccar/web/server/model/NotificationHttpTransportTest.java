@@ -0,0 +1,183 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.server.model;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class NotificationHttpTransportTest {
+    /**
+     * Answers with the configured status code after the configured delay, counts requests and client connections
+     */
+    static class Stub implements HttpHandler {
+        final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+        final AtomicInteger requests = new AtomicInteger();
+        volatile int code = 200;
+        volatile long delay;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            InputStream is = exchange.getRequestBody();
+            while (is.read() != -1);
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ignored) {
+                }
+            }
+            byte[] response = "{\"active\":true}".getBytes("UTF-8");
+            exchange.sendResponseHeaders(code, response.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(response);
+            os.close();
+        }
+    }
+
+    HttpServer server;
+    Stub stub;
+    String url;
+    NotificationHttpTransport transport;
+
+    @Before
+    public void start() throws IOException {
+        stub = new Stub();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", stub);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/pushes";
+        transport = new NotificationHttpTransport();
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testConnectionReuse() throws IOException {
+        for (int i = 0; i < 50; i++) {
+            NotificationHttpTransport.Response response = transport.post(url, headers(), "{\"body\":\"" + i + "\"}");
+            assertTrue(response.isSuccessful());
+            assertEquals("{\"active\":true}", response.getBody());
+        }
+        assertEquals(50, stub.requests.get());
+        assertEquals(1, stub.clientPorts.size());
+    }
+
+    @Test
+    public void testReadTimeout() throws IOException {
+        stub.delay = 2000;
+        transport.readTimeout = 200;
+        long start = System.currentTimeMillis();
+        try {
+            transport.post(url, headers(), "{}");
+            fail();
+        } catch (SocketTimeoutException expected) {
+        }
+        assertTrue(System.currentTimeMillis() - start < 1500);
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        stub.code = 500;
+        transport.openTime = 300;
+        for (int i = 0; i < NotificationHttpTransport.FAILURE_THRESHOLD; i++) {
+            assertEquals(500, transport.post(url, headers(), "{}").getCode());
+        }
+        try {
+            transport.post(url, headers(), "{}");
+            fail();
+        } catch (NotificationHttpTransport.CircuitOpenException expected) {
+        }
+        assertEquals(NotificationHttpTransport.FAILURE_THRESHOLD, stub.requests.get());
+
+        // failed trial request opens circuit again
+        Thread.sleep(400);
+        assertEquals(500, transport.post(url, headers(), "{}").getCode());
+        try {
+            transport.post(url, headers(), "{}");
+            fail();
+        } catch (NotificationHttpTransport.CircuitOpenException expected) {
+        }
+
+        // successful trial request closes circuit
+        stub.code = 200;
+        Thread.sleep(400);
+        assertTrue(transport.post(url, headers(), "{}").isSuccessful());
+        assertTrue(transport.post(url, headers(), "{}").isSuccessful());
+    }
+
+    @Test
+    public void testClientErrorDoesNotOpenCircuit() throws IOException {
+        stub.code = 401;
+        for (int i = 0; i < NotificationHttpTransport.FAILURE_THRESHOLD * 2; i++) {
+            assertEquals(401, transport.post(url, headers(), "{}").getCode());
+        }
+    }
+
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        stub.delay = 500;
+        transport.maxConcurrentRequests = 2;
+        transport.acquireTimeout = 100;
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        List<Future<NotificationHttpTransport.Response>> results = new ArrayList<Future<NotificationHttpTransport.Response>>();
+        for (int i = 0; i < 3; i++) {
+            results.add(executor.submit(new Callable<NotificationHttpTransport.Response>() {
+                @Override
+                public NotificationHttpTransport.Response call() throws Exception {
+                    return transport.post(url, headers(), "{}");
+                }
+            }));
+        }
+        int rejected = 0;
+        for (Future<NotificationHttpTransport.Response> result : results) {
+            try {
+                assertTrue(result.get().isSuccessful());
+            } catch (ExecutionException ee) {
+                assertTrue(ee.getCause() instanceof IOException);
+                rejected++;
+            }
+        }
+        executor.shutdown();
+        assertEquals(1, rejected);
+        assertEquals(2, stub.requests.get());
+    }
+
+    private static Map<String, String> headers() {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Content-Type", "application/json");
+        return headers;
+    }
+}
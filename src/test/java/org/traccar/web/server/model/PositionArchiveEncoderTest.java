@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.server.model;
+
+import org.junit.Test;
+import org.traccar.web.shared.model.Device;
+import org.traccar.web.shared.model.Position;
+import org.traccar.web.shared.model.PositionArchive;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class PositionArchiveEncoderTest {
+    @Test
+    public void testRoundTrip() {
+        Device device = new Device();
+        Random random = new Random(1);
+        List<Position> positions = new ArrayList<Position>();
+        long id = 1000;
+        long time = 1420070400000L;
+        for (int i = 0; i < 1000; i++) {
+            Position position = new Position();
+            // some gaps are too long to fit into integer
+            id += i % 400 == 399 ? 5000000000L : random.nextInt(100) - 10;
+            time += i % 300 == 299 ? 30L * 24 * 3600 * 1000 : random.nextInt(60000);
+            position.setId(id);
+            position.setTime(new Date(time));
+            position.setLatitude(-90 + random.nextDouble() * 180);
+            position.setLongitude(-180 + random.nextDouble() * 360);
+            position.setSpeed(i % 7 == 0 ? null : random.nextInt(20000) / 100d);
+            position.setCourse(i % 11 == 0 ? null : random.nextInt(3600) / 10d);
+            position.setAltitude(i % 10 == 0 ? null : random.nextInt(100000) / 10d);
+            // realistic steps between positions are shorter than 100 meters
+            position.setDistance(i == 0 ? 0 : random.nextDouble() * 0.1);
+            position.setValid(i % 13 == 0 ? null : random.nextBoolean());
+            position.setPower(i % 2 == 0 ? null : random.nextDouble());
+            position.setAddress("address" + i);
+            position.setOther("<info>" + i + "</info>");
+            positions.add(position);
+        }
+
+        PositionArchiveEncoder encoder = new PositionArchiveEncoder(device, true);
+        for (Position position : positions) {
+            encoder.add(position);
+        }
+        PositionArchive archive = encoder.encode();
+        assertEquals(positions.size(), archive.getCount());
+        assertEquals(2, archive.getIdJumps().length);
+        assertEquals(3, archive.getTimeJumps().length);
+
+        List<Position> decoded = archive.decode();
+        assertEquals(positions.size(), decoded.size());
+        for (int i = 0; i < positions.size(); i++) {
+            Position expected = positions.get(i);
+            Position actual = decoded.get(i);
+            assertSame(device, actual.getDevice());
+            assertEquals(expected.getId(), actual.getId());
+            assertEquals(expected.getTime(), actual.getTime());
+            assertNullableEquals(expected.getLatitude(), actual.getLatitude(), 0.0000005);
+            assertNullableEquals(expected.getLongitude(), actual.getLongitude(), 0.0000005);
+            assertNullableEquals(expected.getSpeed(), actual.getSpeed(), 0.000001);
+            assertNullableEquals(expected.getCourse(), actual.getCourse(), 0.000001);
+            assertNullableEquals(expected.getAltitude(), actual.getAltitude(), 0.000001);
+            assertEquals(expected.getDistance(), actual.getDistance(), 0.000005);
+            assertEquals(expected.getValid(), actual.getValid());
+            assertEquals(expected.getPower(), actual.getPower());
+            assertEquals(expected.getAddress(), actual.getAddress());
+            assertEquals(expected.getOther(), actual.getOther());
+        }
+    }
+
+    private static void assertNullableEquals(Double expected, Double actual, double delta) {
+        if (expected == null || actual == null) {
+            assertSame(expected, actual);
+        } else {
+            assertEquals(expected, actual, delta);
+        }
+    }
+
+    @Test
+    public void testWithoutAttributes() {
+        Position position = new Position();
+        position.setTime(new Date(1000));
+        position.setLatitude(1d);
+        position.setLongitude(2d);
+        position.setAddress("address");
+
+        PositionArchiveEncoder encoder = new PositionArchiveEncoder(new Device(), false);
+        encoder.add(position);
+        PositionArchive archive = encoder.encode();
+        assertNull(archive.getAddresses());
+
+        Position decoded = archive.decode().get(0);
+        assertEquals(1000, decoded.getTime().getTime());
+        assertEquals(1, decoded.getLatitude(), 0);
+        assertEquals(2, decoded.getLongitude(), 0);
+        assertNull(decoded.getSpeed());
+        assertNull(decoded.getAddress());
+        assertNull(decoded.getValid());
+    }
+}
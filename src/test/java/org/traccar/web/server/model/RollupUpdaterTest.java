@@ -0,0 +1,287 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.server.model;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.traccar.web.shared.model.DailyRollup;
+import org.traccar.web.shared.model.Device;
+import org.traccar.web.shared.model.HourlyRollup;
+import org.traccar.web.shared.model.Position;
+import org.traccar.web.shared.model.PositionRollup;
+import org.traccar.web.shared.model.RollupState;
+
+import javax.inject.Provider;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.traccar.web.server.model.RollupUpdater.DAY;
+import static org.traccar.web.server.model.RollupUpdater.HOUR;
+
+public class RollupUpdaterTest {
+    static EntityManagerFactory entityManagerFactory;
+
+    /**
+     * Start of the first day with positions
+     */
+    static final long START = 1420070400000L;
+
+    EntityManager entityManager;
+    Device device;
+    OdometerUpdater odometerUpdater;
+
+    @BeforeClass
+    public static void createDatabase() {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("hibernate.connection.url", "jdbc:h2:mem:rollups;DB_CLOSE_DELAY=-1");
+        properties.put("hibernate.show_sql", "false");
+        entityManagerFactory = Persistence.createEntityManagerFactory("debug", properties);
+    }
+
+    @Before
+    public void init() {
+        entityManager = entityManagerFactory.createEntityManager();
+        entityManager.getTransaction().begin();
+        entityManager.createQuery("DELETE FROM HourlyRollup").executeUpdate();
+        entityManager.createQuery("DELETE FROM DailyRollup").executeUpdate();
+        entityManager.createQuery("DELETE FROM RollupState").executeUpdate();
+        entityManager.createQuery("DELETE FROM Position").executeUpdate();
+        entityManager.createQuery("DELETE FROM Device").executeUpdate();
+        device = new Device();
+        device.setName("test");
+        device.setUniqueId("test");
+        device.setIdleSpeedThreshold(1);
+        entityManager.persist(device);
+        entityManager.getTransaction().commit();
+
+        odometerUpdater = new OdometerUpdater();
+        odometerUpdater.entityManager = provider();
+    }
+
+    @After
+    public void close() {
+        entityManager.close();
+    }
+
+    @Test
+    public void testFloorCeil() {
+        assertEquals(0, RollupUpdater.floor(0, HOUR));
+        assertEquals(0, RollupUpdater.floor(HOUR - 1, HOUR));
+        assertEquals(HOUR, RollupUpdater.floor(HOUR, HOUR));
+        assertEquals(-HOUR, RollupUpdater.floor(-1, HOUR));
+        assertEquals(0, RollupUpdater.ceil(0, HOUR));
+        assertEquals(HOUR, RollupUpdater.ceil(1, HOUR));
+        assertEquals(0, RollupUpdater.ceil(-1, HOUR));
+        assertEquals(START, RollupUpdater.floor(START + DAY - 1, DAY));
+        assertEquals(START + DAY, RollupUpdater.ceil(START + 1, DAY));
+    }
+
+    @Test
+    public void testGetRollups() throws Exception {
+        // positions every 7 minutes during 3 days
+        for (long time = START - 2 * HOUR; time < START + 3 * DAY; time += 7 * 60000) {
+            addPosition(time, (time / 60000) % 5 * 10);
+        }
+        update(newRollupUpdater());
+
+        // whole days, partial hours and periods ending exactly at the end of hour or day
+        long[][] periods = {
+                { START - 30 * 60000, START + 2 * DAY + 90 * 60000 + 123 },
+                { START, START + DAY - 1 },
+                { START + HOUR, START + 2 * HOUR - 1 },
+                { START + HOUR, START + 2 * HOUR },
+                { START + 10 * 60000, START + 50 * 60000 },
+                { START + DAY - HOUR, START + 2 * DAY + HOUR - 1 },
+                { START + 5 * HOUR, START + 5 * HOUR }
+        };
+        for (long[] period : periods) {
+            assertRollups(period[0], period[1]);
+        }
+
+        List<PositionRollup> rollups = RollupUpdater.getRollups(entityManager, device, new Date(START - HOUR), new Date(START + 2 * DAY + HOUR - 1));
+        assertEquals(HourlyRollup.class, rollups.get(0).getClass());
+        assertEquals(DailyRollup.class, rollups.get(1).getClass());
+        assertEquals(DailyRollup.class, rollups.get(2).getClass());
+        assertEquals(HourlyRollup.class, rollups.get(3).getClass());
+    }
+
+    @Test
+    public void testOutOfOrder() throws Exception {
+        for (long time = START; time < START + 5 * HOUR; time += 10 * 60000) {
+            addPosition(time, 20);
+        }
+        RollupUpdater rollupUpdater = newRollupUpdater();
+        update(rollupUpdater);
+
+        // late position changes distance of the next position, which is in the next hour
+        addPosition(START + HOUR - 5 * 60000, 20);
+        update(rollupUpdater);
+        assertHourlyRollups();
+
+        // after restart it is not known yet, that position is late
+        addPosition(START + 3 * HOUR - 5 * 60000, 20);
+        update(newRollupUpdater());
+        assertHourlyRollups();
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        for (long time = START; time < START + 3 * HOUR; time += 10 * 60000) {
+            addPosition(time, 20);
+        }
+        update(newRollupUpdater());
+        assertEquals(maxPositionId(), state().getLastPositionId());
+
+        // rollups made before the state was saved, other device was never rolled up
+        entityManager.getTransaction().begin();
+        entityManager.remove(state());
+        entityManager.getTransaction().commit();
+        Device silent = device;
+        device = addDevice("other");
+        for (long time = START; time < START + 3 * HOUR; time += 10 * 60000) {
+            addPosition(time, 20);
+        }
+        update(newRollupUpdater());
+        assertHourlyRollups();
+        assertEquals(maxPositionId(), state().getLastPositionId());
+
+        // scanning continues from the saved position, not from the latest rollup of the silent device
+        device = silent;
+        addPosition(START + 3 * HOUR + 5 * 60000, 20);
+        entityManager.getTransaction().begin();
+        state().setLastPositionId(maxPositionId());
+        entityManager.getTransaction().commit();
+        update(newRollupUpdater());
+        assertTrue(entityManager.createQuery("SELECT r FROM HourlyRollup r WHERE r.device = :device AND r.time = :time", HourlyRollup.class)
+                .setParameter("device", device)
+                .setParameter("time", new Date(START + 3 * HOUR))
+                .getResultList().isEmpty());
+    }
+
+    private Provider<EntityManager> provider() {
+        return new Provider<EntityManager>() {
+            @Override
+            public EntityManager get() {
+                return entityManager;
+            }
+        };
+    }
+
+    private RollupUpdater newRollupUpdater() {
+        RollupUpdater rollupUpdater = new RollupUpdater();
+        rollupUpdater.entityManager = provider();
+        return rollupUpdater;
+    }
+
+    private void update(RollupUpdater rollupUpdater) throws Exception {
+        odometerUpdater.doWork();
+        rollupUpdater.doWork();
+        entityManager.clear();
+        device = entityManager.find(Device.class, device.getId());
+    }
+
+    private Device addDevice(String name) {
+        entityManager.getTransaction().begin();
+        Device device = new Device();
+        device.setName(name);
+        device.setUniqueId(name);
+        device.setIdleSpeedThreshold(1);
+        entityManager.persist(device);
+        entityManager.getTransaction().commit();
+        return device;
+    }
+
+    private RollupState state() {
+        return entityManager.createQuery("SELECT s FROM RollupState s", RollupState.class).getSingleResult();
+    }
+
+    private long maxPositionId() {
+        return entityManager.createQuery("SELECT MAX(p.id) FROM Position p", Long.class).getSingleResult();
+    }
+
+    /**
+     * Adds position, moving device goes north by 0.001 degree per minute
+     */
+    private void addPosition(long time, double speed) {
+        entityManager.getTransaction().begin();
+        Position position = new Position();
+        position.setDevice(entityManager.find(Device.class, device.getId()));
+        position.setTime(new Date(time));
+        position.setLatitude(10 + (time - START) / 60000 * 0.001);
+        position.setLongitude(20d);
+        position.setSpeed(speed);
+        entityManager.persist(position);
+        entityManager.getTransaction().commit();
+    }
+
+    /**
+     * Checks rollups against raw positions of the period
+     *
+     * @param to end of period, inclusive
+     */
+    private void assertRollups(long from, long to) {
+        int pointCount = 0;
+        double distance = 0;
+        double maxSpeed = 0;
+        for (Position position : positions(device, from, to + 1)) {
+            pointCount++;
+            distance += position.getStepDistance();
+            maxSpeed = Math.max(maxSpeed, position.getSpeed());
+        }
+
+        int rollupPointCount = 0;
+        double rollupDistance = 0;
+        double rollupMaxSpeed = 0;
+        for (PositionRollup rollup : RollupUpdater.getRollups(entityManager, device, new Date(from), new Date(to))) {
+            rollupPointCount += rollup.getPointCount();
+            rollupDistance += rollup.getDistance();
+            rollupMaxSpeed = Math.max(rollupMaxSpeed, rollup.getMaxSpeed());
+        }
+        assertEquals(pointCount, rollupPointCount);
+        assertEquals(distance, rollupDistance, 0.000001);
+        assertEquals(maxSpeed, rollupMaxSpeed, 0);
+    }
+
+    private void assertHourlyRollups() {
+        List<HourlyRollup> rollups = entityManager.createQuery("SELECT r FROM HourlyRollup r ORDER BY r.time", HourlyRollup.class).getResultList();
+        assertFalse(rollups.isEmpty());
+        for (HourlyRollup rollup : rollups) {
+            List<Position> positions = positions(rollup.getDevice(), rollup.getTime().getTime(), rollup.getTime().getTime() + HOUR);
+            double distance = 0;
+            for (Position position : positions) {
+                distance += position.getStepDistance();
+            }
+            assertEquals(positions.size(), rollup.getPointCount());
+            assertEquals(distance, rollup.getDistance(), 0.000001);
+        }
+    }
+
+    /**
+     * @param to end of period, exclusive
+     */
+    private List<Position> positions(Device device, long from, long to) {
+        return entityManager.createQuery("SELECT p FROM Position p WHERE p.device = :device AND p.time >= :from AND p.time < :to ORDER BY p.time, p.id", Position.class)
+                .setParameter("device", device)
+                .setParameter("from", new Date(from))
+                .setParameter("to", new Date(to))
+                .getResultList();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.server.model;
+
+import org.junit.Test;
+import org.traccar.web.shared.model.Position;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TrackSimplifierTest {
+    private static Position position(long id, double longitude, double latitude, double speed, double distance) {
+        Position position = new Position();
+        position.setId(id);
+        position.setTime(new Date(id * 1000));
+        position.setLongitude(longitude);
+        position.setLatitude(latitude);
+        position.setSpeed(speed);
+        position.setDistance(distance);
+        return position;
+    }
+
+    @Test
+    public void testStraightLine() {
+        TrackSimplifier simplifier = new TrackSimplifier(10, Collections.<Long>emptySet(), 0);
+        double total = 0;
+        for (int i = 0; i < 5000; i++) {
+            // ~11 meters between positions, ~1 meter of noise
+            Position position = position(i, 10 + i * 0.0001 + (i % 2) * 0.00001, 50, 20, i == 0 ? 0 : 7.2);
+            total += position.getDistance();
+            simplifier.add(position);
+        }
+        List<Position> result = simplifier.finish();
+
+        assertTrue(result.size() < 10);
+        assertEquals(0, result.get(0).getId());
+        assertEquals(4999, result.get(result.size() - 1).getId());
+        double simplifiedTotal = 0;
+        for (Position position : result) {
+            simplifiedTotal += position.getDistance();
+        }
+        assertEquals(total, simplifiedTotal, 0.0001);
+    }
+
+    @Test
+    public void testKeepsTurnsStopsAndEvents() {
+        TrackSimplifier simplifier = new TrackSimplifier(10, Collections.singleton(30L), 1);
+        long id = 0;
+        // east
+        for (int i = 0; i < 50; i++) {
+            simplifier.add(position(id++, 10 + i * 0.0001, 50, 20, 0));
+        }
+        // stop
+        for (int i = 0; i < 20; i++) {
+            simplifier.add(position(id++, 10.005, 50, 0, 0));
+        }
+        // north
+        for (int i = 1; i <= 50; i++) {
+            simplifier.add(position(id++, 10.005, 50 + i * 0.0001, 20, 0));
+        }
+        List<Long> ids = new ArrayList<Long>();
+        for (Position position : simplifier.finish()) {
+            ids.add(position.getId());
+        }
+
+        assertEquals(Arrays.asList(0L, 30L, 49L, 50L, 69L, 70L, 119L), ids);
+    }
+
+    @Test
+    public void testDistanceToSegment() {
+        assertEquals(1, TrackSimplifier.distance(5, 1, 0, 0, 10, 0), 0.000001);
+        assertEquals(5, TrackSimplifier.distance(-3, 4, 0, 0, 10, 0), 0.000001);
+        assertEquals(5, TrackSimplifier.distance(3, 4, 0, 0, 0, 0), 0.000001);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 Vitaly Litvak (vitavaque@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.web.server.model;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.traccar.web.shared.model.Device;
+import org.traccar.web.shared.model.Position;
+import org.traccar.web.shared.model.Stop;
+import org.traccar.web.shared.model.Trip;
+import org.traccar.web.shared.model.TripSummary;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class TripDetectorTest {
+    Device device;
+    TripDetector detector;
+    double longitude;
+
+    @Before
+    public void init() {
+        device = new Device();
+        device.setIdleSpeedThreshold(1);
+        device.setTimeout(300);
+        detector = new TripDetector(device);
+    }
+
+    /**
+     * Adds position at the specified minute, moving device goes east by 0.001 degree per minute
+     */
+    void add(int minute, double speed) {
+        if (speed > 0) {
+            longitude += 0.001;
+        }
+        Position position = new Position();
+        position.setTime(new Date(minute * 60000L));
+        position.setLatitude(0d);
+        position.setLongitude(longitude);
+        position.setSpeed(speed);
+        detector.add(position);
+    }
+
+    @Test
+    public void testTripsAndStops() {
+        // moving, short stop at traffic lights, moving again
+        for (int i = 0; i <= 10; i++) {
+            add(i, i >= 4 && i <= 5 ? 0 : 10);
+        }
+        // parked for 20 minutes
+        for (int i = 11; i <= 30; i++) {
+            add(i, 0);
+        }
+        // second trip
+        for (int i = 31; i <= 40; i++) {
+            add(i, 20);
+        }
+        TripSummary summary = detector.finish();
+
+        assertEquals(2, summary.getTrips().size());
+        assertEquals(1, summary.getStops().size());
+
+        Trip first = summary.getTrips().get(0);
+        assertEquals(0, first.getStart().getTime());
+        assertEquals(11 * 60000L, first.getEnd().getTime());
+        assertEquals(10, first.getMaxSpeed(), 0);
+        assertEquals(GeoFenceCalculator.getDistance(0.001, 0, 0.009, 0), first.getDistance(), 0.000001);
+
+        Stop stop = summary.getStops().get(0);
+        assertEquals(11 * 60000L, stop.getStart().getTime());
+        assertEquals(31 * 60000L, stop.getEnd().getTime());
+        assertEquals(0.009, stop.getLongitude(), 0.0000001);
+
+        Trip second = summary.getTrips().get(1);
+        assertEquals(31 * 60000L, second.getStart().getTime());
+        assertEquals(40 * 60000L, second.getEnd().getTime());
+        assertEquals(20, second.getMaxSpeed(), 0);
+        // step from the stop to the first moving position is included
+        assertEquals(GeoFenceCalculator.getDistance(0.009, 0, 0.019, 0), second.getDistance(), 0.000001);
+        assertEquals(second.getDistance() / 1.852 / (9 / 60d), second.getAverageSpeed(), 0.000001);
+
+        assertEquals(first.getDistance() + second.getDistance(), summary.getDistance(), 0.000001);
+        assertEquals(20 * 60000L, summary.getMovingTime());
+        assertEquals(20 * 60000L, summary.getStoppedTime());
+    }
+
+    @Test
+    public void testNoPositions() {
+        // device moves, but does not report positions for 10 minutes
+        add(0, 10);
+        add(1, 10);
+        add(11, 10);
+        add(12, 10);
+        TripSummary summary = detector.finish();
+
+        assertEquals(2, summary.getTrips().size());
+        assertEquals(1, summary.getStops().size());
+        assertEquals(60000L, summary.getStops().get(0).getStart().getTime());
+        assertEquals(11 * 60000L, summary.getStops().get(0).getEnd().getTime());
+    }
+
+    @Test
+    public void testStartFromParking() {
+        add(0, 0);
+        add(1, 0);
+        add(2, 10);
+        add(3, 10);
+        TripSummary summary = detector.finish();
+
+        assertEquals(1, summary.getTrips().size());
+        Trip trip = summary.getTrips().get(0);
+        assertEquals(2 * 60000L, trip.getStart().getTime());
+        assertEquals(GeoFenceCalculator.getDistance(0, 0, 0.002, 0), trip.getDistance(), 0.000001);
+        assertEquals(trip.getDistance(), summary.getDistance(), 0.000001);
+    }
+
+    @Test
+    public void testParked() {
+        for (int i = 0; i < 3; i++) {
+            add(i, 0);
+        }
+        TripSummary summary = detector.finish();
+
+        assertTrue(summary.getTrips().isEmpty());
+        assertEquals(1, summary.getStops().size());
+        assertEquals(2 * 60000L, summary.getStoppedTime());
+    }
+}
@@ -60,6 +60,12 @@ public class UserCheckTest {
         @Override
         public void configure(Binder binder) {
             binder.bind(User.class).toProvider(userProvider);
+            binder.bind(UserRoles.class).toProvider(new Provider<UserRoles>() {
+                @Override
+                public UserRoles get() {
+                    return UserRoles.of(userProvider.get());
+                }
+            });
             binder.bind(ApplicationSettings.class).toProvider(settingsProvider);
         }
     }